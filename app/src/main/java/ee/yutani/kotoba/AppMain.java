@@ -22,10 +22,18 @@
 package ee.yutani.kotoba;
 
 // Imports
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.os.AsyncTask;
 import android.preference.PreferenceManager;
+import android.util.Log;
 
 // Application
 public class AppMain extends Application implements DataMain.Callback
@@ -34,6 +42,7 @@ public class AppMain extends Application implements DataMain.Callback
     public interface ActivityCallback
     {
         // States
+        public void StateSearch();
         public void StateNormal();
 
         // Loading progress dialog
@@ -48,9 +57,15 @@ public class AppMain extends Application implements DataMain.Callback
         public void StateNormal();
     }
 
+    // Fragments that only need search, started before the rest has loaded
+    public interface SearchCallback extends FragmentCallback
+    {
+    }
+
     // State
     private enum State {
         STATE_LOADING,
+        STATE_SEARCH,
         STATE_NORMAL,
         STATE_ERROR
     }
@@ -59,6 +74,9 @@ public class AppMain extends Application implements DataMain.Callback
     // Database
     private DataMain m_data = null;
 
+    // Sentence search, ready after its indexes are built
+    private boolean m_sentence_search = false;
+
     // Activity and frament callbacks
     private ActivityCallback m_activity = null;
     private ArrayList<FragmentCallback> m_fragment = new ArrayList<FragmentCallback>();
@@ -69,20 +87,88 @@ public class AppMain extends Application implements DataMain.Callback
         // Default preferences
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
 
-        // Loading stage
+        // Timing trace from the start
+        DataTrace.SetEnabled(PreferenceManager.getDefaultSharedPreferences(this).getBoolean("trace_timing", false));
+
+        // Loading stage, off the serial queue so that searches can run once the search files are ready
         m_data = new DataMain(this.getApplicationContext(), this);
-        m_data.execute();
+        m_data.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 
         // Superclass
         super.onCreate();
     }
 
+    // Memory pressure
+    @Override public void onTrimMemory(int level)
+    {
+        // Timing trace when leaving the app
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && DataTrace.Enabled())
+            TraceWrite();
+
+        // Cached words are dropped in the background and halved while running low
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+            DataFileWord.INFO_CACHE.Clear();
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            DataFileWord.INFO_CACHE.Trim(DataFileWord.INFO_CACHE.Size() / 2);
+
+        // Superclass
+        super.onTrimMemory(level);
+    }
+
+    @Override public void onLowMemory()
+    {
+        DataFileWord.INFO_CACHE.Clear();
+        super.onLowMemory();
+    }
+
+    // Timing trace, in external storage when available so that it can be pulled from the device
+    private void TraceWrite()
+    {
+        File dir = getExternalFilesDir(null);
+        if (dir == null)
+            dir = getFilesDir();
+        File file = new File(dir, "kotoba-trace.json");
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                DataTrace.Write(os);
+            } finally {
+                os.close();
+            }
+        } catch (IOException ex) {
+            Log.e("AppMain::TraceWrite", "IO error", ex);
+        }
+        Log.i("AppMain::TraceWrite", DataTrace.Report());
+    }
+
     // Database loading
+    @Override public void DatabaseSearchReady()
+    {
+        m_state = State.STATE_SEARCH;
+        ActivityRefresh();
+        FragmentRefresh();
+    }
+
+    @Override public void DatabaseSentenceSearchReady()
+    {
+        m_sentence_search = true;
+    }
+
+    public boolean SentenceSearchReady()
+    {
+        return m_sentence_search;
+    }
+
     @Override public void DatabaseLoadingFinished()
     {
+        // Search fragments are already running
+        boolean search = (m_state == State.STATE_SEARCH);
         m_state = State.STATE_NORMAL;
         ActivityRefresh();
-        FragmentRefresh();
+        for (FragmentCallback callback : m_fragment) {
+            if (!search || !(callback instanceof SearchCallback))
+                FragmentUpdate(callback);
+        }
     }
 
     @Override public void DatabaseLoadingProgress(String text)
@@ -97,6 +183,13 @@ public class AppMain extends Application implements DataMain.Callback
         return m_data;
     }
 
+    // Pending user data is written before the app can be killed
+    public void DatabaseFlush()
+    {
+        if (m_state == State.STATE_NORMAL)
+            m_data.UserWord().Flush();
+    }
+
     // Activity
     public void ActivityAttach(ActivityCallback callback)
     {
@@ -115,6 +208,10 @@ public class AppMain extends Application implements DataMain.Callback
                     m_activity.LoadingCreate();
                     break;
 
+                case STATE_SEARCH:
+                    m_activity.StateSearch();
+                    break;
+
                 case STATE_NORMAL:
                     m_activity.StateNormal();
                     break;
@@ -143,6 +240,11 @@ public class AppMain extends Application implements DataMain.Callback
     public void FragmentUpdate(FragmentCallback callback)
     {
         switch (m_state) {
+            case STATE_SEARCH:
+                if (callback instanceof SearchCallback)
+                    callback.StateNormal();
+                break;
+
             case STATE_NORMAL:
                 callback.StateNormal();
                 break;
@@ -0,0 +1,78 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Least recently used cache of decompressed file blocks
+public class DataBlockCache
+{
+    // Size
+    private long m_size_max;
+    private long m_size = 0;
+
+    // Blocks in access order
+    private LinkedHashMap<Long, byte[]> m_block = new LinkedHashMap<Long, byte[]>(64, 0.75f, true);
+
+    // Constructor
+    public DataBlockCache(long size_max)
+    {
+        m_size_max = size_max;
+    }
+
+    // Gets
+    public synchronized byte[] Get(long key)
+    {
+        return m_block.get(key);
+    }
+
+    public synchronized long Size()
+    {
+        return m_size;
+    }
+
+    // Sets
+    public synchronized void Put(long key, byte[] block)
+    {
+        // Insert
+        byte[] old = m_block.put(key, block);
+        if (old != null)
+            m_size -= old.length;
+        m_size += block.length;
+
+        // Evict least recently used blocks, the newest block is last in the iteration order
+        Iterator<Map.Entry<Long, byte[]>> it = m_block.entrySet().iterator();
+        while (m_size > m_size_max && m_block.size() > 1 && it.hasNext()) {
+            m_size -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    public synchronized void Clear()
+    {
+        m_block.clear();
+        m_size = 0;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// LZ4 style block compression used by KDB v2 files
+public class DataCompress
+{
+    // File header
+    public static final int KDB2_MAGIC = 0x3242444b;
+    public static final int KDB2_HEADER = 16;
+
+    // Match parameters
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_LIMIT = 12;
+
+    // Hash table
+    private static final int HASH_BITS = 14;
+
+    // Compression
+    public static byte[] Compress(byte[] src, int off, int len)
+    {
+        // Output buffer large enough for incompressible data
+        byte[] dst = new byte[len + (len / 255) + 16];
+        int op = 0;
+
+        // Last position of each hashed sequence
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+
+        // Greedy matching
+        int end = off + len;
+        int anchor = off;
+        int ip = off;
+        while (ip < end - MATCH_LIMIT) {
+            // Candidate match
+            int seq = ReadInt(src, ip);
+            int hash = (seq * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || ReadInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+
+            // Extend match
+            int match = MIN_MATCH;
+            while (ip + match < end - LAST_LITERALS && src[ref + match] == src[ip + match])
+                match++;
+
+            // Sequence
+            op = WriteSequence(dst, op, src, anchor, ip - anchor, ip - ref, match);
+            ip += match;
+            anchor = ip;
+        }
+
+        // Last literals
+        op = WriteSequence(dst, op, src, anchor, end - anchor, 0, 0);
+        return Arrays.copyOf(dst, op);
+    }
+
+    private static int WriteSequence(byte[] dst, int op, byte[] src, int lit_off, int lit_len, int offset, int match)
+    {
+        // Token
+        int token_pos = op++;
+        int token = (Math.min(lit_len, 15) << 4);
+
+        // Literals
+        op = WriteLength(dst, op, lit_len);
+        System.arraycopy(src, lit_off, dst, op, lit_len);
+        op += lit_len;
+
+        // Match
+        if (match > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >> 8);
+            token |= Math.min(match - MIN_MATCH, 15);
+            op = WriteLength(dst, op, match - MIN_MATCH);
+        }
+
+        dst[token_pos] = (byte) token;
+        return op;
+    }
+
+    private static int WriteLength(byte[] dst, int op, int len)
+    {
+        if (len < 15)
+            return op;
+        len -= 15;
+        while (len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    private static int ReadInt(byte[] src, int pos)
+    {
+        return (src[pos] & 0xff) | ((src[pos + 1] & 0xff) << 8) | ((src[pos + 2] & 0xff) << 16) | (src[pos + 3] << 24);
+    }
+
+    // Decompression
+    public static void Decompress(byte[] src, byte[] dst)
+    {
+        int ip = 0;
+        int op = 0;
+        while (ip < src.length) {
+            // Token
+            int token = src[ip++] & 0xff;
+
+            // Literals
+            int lit_len = token >>> 4;
+            if (lit_len == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xff;
+                    lit_len += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, ip, dst, op, lit_len);
+            ip += lit_len;
+            op += lit_len;
+
+            // Last sequence has no match
+            if (ip >= src.length)
+                break;
+
+            // Match
+            int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+            ip += 2;
+            int match = token & 15;
+            if (match == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xff;
+                    match += b;
+                } while (b == 255);
+            }
+            match += MIN_MATCH;
+
+            // Copy byte by byte as match may overlap output
+            int ref = op - offset;
+            for (int i = 0; i < match; i++)
+                dst[op++] = dst[ref++];
+        }
+    }
+
+    // KDB v2 container writing, used by database creation tools
+    public static void Pack(byte[] data, int block_size, OutputStream os) throws IOException
+    {
+        // Compress blocks
+        int block_num = (data.length + block_size - 1) / block_size;
+        byte[][] blocks = new byte[block_num][];
+        for (int i = 0; i < block_num; i++) {
+            int off = i * block_size;
+            blocks[i] = Compress(data, off, Math.min(block_size, data.length - off));
+        }
+
+        // Header and block directory
+        ByteBuffer header = ByteBuffer.allocate(KDB2_HEADER + (4 * (block_num + 1)));
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(KDB2_MAGIC);
+        header.putInt(block_size);
+        header.putInt(data.length);
+        header.putInt(block_num);
+        int offset = header.capacity();
+        for (int i = 0; i < block_num; i++) {
+            header.putInt(offset);
+            offset += blocks[i].length;
+        }
+        header.putInt(offset);
+        os.write(header.array());
+
+        // Blocks
+        for (byte[] block : blocks)
+            os.write(block);
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.Context;
+
+// Minimal acyclic automaton over the keys of a base file, ranks keys to entry ids
+public class DataFileAutomaton
+{
+    // File header
+    public static final int MAGIC = 0x3141464b;
+    private static final int HEADER = 16;
+
+    // States, keys ending at and accepted below each state
+    private int m_root = 0;
+    private int[] m_state_trans = null;
+    private int[] m_state_count = null;
+    private int[] m_state_final = null;
+
+    // Transitions, sorted by label within a state
+    private char[] m_trans_label = null;
+    private int[] m_trans_target = null;
+
+    // Keys of a state sorting before each transition
+    private int[] m_trans_rank = null;
+
+    // Best keys of a fuzzy search, by distance and then in key order
+    private static class FuzzyBest
+    {
+        // Entry ids by distance
+        private int[][] m_id;
+        private int[] m_num;
+        private int m_size = 0;
+        private int m_limit;
+
+        // Constructor
+        private FuzzyBest(int distance, int limit)
+        {
+            m_id = new int[distance + 1][limit];
+            m_num = new int[distance + 1];
+            m_limit = limit;
+        }
+
+        // Largest distance still taken, keys arrive in key order so that a full set only takes closer keys
+        private int Bound()
+        {
+            if (m_size < m_limit)
+                return m_num.length - 1;
+            return Worst() - 1;
+        }
+
+        private int Worst()
+        {
+            int dist = m_num.length - 1;
+            while (dist >= 0 && m_num[dist] == 0)
+                dist--;
+            return dist;
+        }
+
+        private void Add(int id, int dist)
+        {
+            // Last key of the worst distance makes room
+            if (m_size == m_limit) {
+                int worst = Worst();
+                if (worst <= dist)
+                    return;
+                m_num[worst]--;
+                m_size--;
+            }
+            m_id[dist][m_num[dist]++] = id;
+            m_size++;
+        }
+    }
+
+    // Constructor
+    public DataFileAutomaton(Context context, String fn) throws IOException
+    {
+        this(new DataStream(context, fn), fn);
+    }
+
+    public DataFileAutomaton(File file) throws IOException
+    {
+        this(new DataStream(file), file.getName());
+    }
+
+    private DataFileAutomaton(DataStream ds, String fn) throws IOException
+    {
+        // Header
+        if (ds.ReadInt(0) != MAGIC)
+            throw new IOException("Invalid automaton file " + fn);
+        int state_num = ds.ReadInt(4);
+        int trans_num = ds.ReadInt(8);
+        m_root = ds.ReadInt(12);
+
+        // States
+        long offset = HEADER;
+        m_state_trans = ds.ReadIntArray(offset, state_num + 1);
+        offset += 4 * (state_num + 1);
+        m_state_count = ds.ReadIntArray(offset, state_num);
+        offset += 4 * state_num;
+        m_state_final = ds.ReadIntArray(offset, state_num);
+        offset += 4 * state_num;
+
+        // Transitions
+        m_trans_target = ds.ReadIntArray(offset, trans_num);
+        offset += 4 * trans_num;
+        m_trans_label = new char[trans_num];
+        ds.Buffer(offset, 2 * trans_num).asCharBuffer().get(m_trans_label);
+
+        // Ranks
+        m_trans_rank = new int[trans_num];
+        for (int state = 0; state < state_num; state++) {
+            int rank = m_state_final[state];
+            for (int t = m_state_trans[state]; t < m_state_trans[state + 1]; t++) {
+                m_trans_rank[t] = rank;
+                rank += m_state_count[m_trans_target[t]];
+            }
+        }
+    }
+
+    // Number of keys
+    public int Size()
+    {
+        return m_state_count[m_root];
+    }
+
+    // Range of entry ids of keys starting with text
+    public void Range(String text, int[] ret)
+    {
+        int state = m_root;
+        int rank = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int trans = Transition(state, text.charAt(i));
+            if (trans < 0) {
+                // No key with this prefix, position among the smaller keys
+                int ins = -trans - 1;
+                rank += ((ins < m_state_trans[state + 1]) ? m_trans_rank[ins] : m_state_count[state]);
+                ret[0] = rank;
+                ret[1] = rank;
+                return;
+            }
+            rank += m_trans_rank[trans];
+            state = m_trans_target[trans];
+        }
+        ret[0] = rank;
+        ret[1] = rank + m_state_count[state];
+    }
+
+    // Keys starting with text, in base file order
+    public ArrayList<String> Complete(String text, int num)
+    {
+        ArrayList<String> ret = new ArrayList<String>();
+
+        // Prefix state
+        int state = m_root;
+        for (int i = 0; i < text.length() && state >= 0; i++) {
+            int trans = Transition(state, text.charAt(i));
+            state = ((trans < 0) ? -1 : m_trans_target[trans]);
+        }
+
+        // Completions
+        if (state >= 0)
+            Complete(state, new StringBuilder(text), num, ret);
+        return ret;
+    }
+
+    private void Complete(int state, StringBuilder text, int num, ArrayList<String> ret)
+    {
+        if (m_state_final[state] > 0 && ret.size() < num)
+            ret.add(text.toString());
+        for (int t = m_state_trans[state]; t < m_state_trans[state + 1] && ret.size() < num; t++) {
+            text.append(m_trans_label[t]);
+            Complete(m_trans_target[t], text, num, ret);
+            text.setLength(text.length() - 1);
+        }
+    }
+
+    // Closest keys within edit distance of text, by distance and then in key order, pruned where no completion can
+    // get within the distance of the keys kept so far. Keys starting with text are left to Range.
+    public int Fuzzy(String text, int distance, int[] ret_id, int[] ret_dist)
+    {
+        // Distance rows by depth
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        int[] row = new int[text.length() + 1];
+        for (int i = 0; i < row.length; i++)
+            row[i] = i;
+        rows.add(row);
+
+        // Traverse
+        FuzzyBest best = new FuzzyBest(distance, ret_id.length);
+        Fuzzy(m_root, 0, 0, true, text, rows, best);
+
+        // Results
+        int num = 0;
+        for (int dist = 0; dist <= distance; dist++) {
+            for (int i = 0; i < best.m_num[dist]; i++) {
+                ret_id[num] = best.m_id[dist][i];
+                ret_dist[num] = dist;
+                num++;
+            }
+        }
+        return num;
+    }
+
+    private void Fuzzy(int state, int depth, int rank, boolean prefix, String text, ArrayList<int[]> rows, FuzzyBest best)
+    {
+        // Key ending at state, prefix tells that the key so far is a prefix of text
+        int[] row = rows.get(depth);
+        int len = text.length();
+        if (m_state_final[state] > 0 && !(prefix && depth == len) && row[len] <= best.Bound())
+            best.Add(rank, row[len]);
+
+        // Next row
+        if (rows.size() <= depth + 1)
+            rows.add(new int[len + 1]);
+        int[] next = rows.get(depth + 1);
+
+        // Transitions
+        for (int t = m_state_trans[state]; t < m_state_trans[state + 1]; t++) {
+            // Keys below start with text
+            char label = m_trans_label[t];
+            boolean next_prefix = (prefix && depth < len && text.charAt(depth) == label);
+            if (next_prefix && depth + 1 == len)
+                continue;
+
+            // Levenshtein row of the label
+            next[0] = row[0] + 1;
+            int min = next[0];
+            for (int i = 1; i <= len; i++) {
+                int cost = row[i - 1] + ((text.charAt(i - 1) == label) ? 0 : 1);
+                cost = Math.min(cost, row[i] + 1);
+                cost = Math.min(cost, next[i - 1] + 1);
+                next[i] = cost;
+                min = Math.min(min, cost);
+            }
+
+            // Prune subtree
+            if (min <= best.Bound())
+                Fuzzy(m_trans_target[t], depth + 1, rank + m_trans_rank[t], next_prefix, text, rows, best);
+        }
+    }
+
+    // Transition lookup, binary search like Arrays.binarySearch
+    private int Transition(int state, char label)
+    {
+        int arr_s = m_state_trans[state];
+        int arr_e = m_state_trans[state + 1];
+        while (arr_e > arr_s) {
+            int arr_m = arr_s + ((arr_e - arr_s) / 2);
+            if (m_trans_label[arr_m] < label)
+                arr_s = arr_m + 1;
+            else if (m_trans_label[arr_m] > label)
+                arr_e = arr_m;
+            else
+                return arr_m;
+        }
+        return -arr_s - 1;
+    }
+
+    // Building state
+    private static class BuildState
+    {
+        // Data
+        private int m_id = -1;
+        private int m_final = 0;
+        private int m_count = 0;
+        private StringBuilder m_label = new StringBuilder();
+        private ArrayList<BuildState> m_target = new ArrayList<BuildState>();
+
+        // Signature of the accepted suffixes, children must be registered
+        private String Signature()
+        {
+            StringBuilder sig = new StringBuilder();
+            sig.append(m_final);
+            for (int i = 0; i < m_target.size(); i++)
+                sig.append(',').append((int) m_label.charAt(i)).append(':').append(m_target.get(i).m_id);
+            return sig.toString();
+        }
+    }
+
+    // Building, keys in base file order so that ranks equal entry ids
+    public static void Build(List<String> keys, OutputStream os) throws IOException
+    {
+        // Incremental construction of sorted keys
+        HashMap<String, BuildState> register = new HashMap<String, BuildState>();
+        ArrayList<BuildState> states = new ArrayList<BuildState>();
+        ArrayList<BuildState> path = new ArrayList<BuildState>();
+        path.add(new BuildState());
+        String prev = "";
+        for (String key : keys) {
+            // Order
+            if (key.compareTo(prev) < 0)
+                throw new IllegalArgumentException("Keys are not sorted: " + key);
+
+            // Common prefix with previous key
+            int common = 0;
+            while (common < key.length() && common < prev.length() && key.charAt(common) == prev.charAt(common))
+                common++;
+
+            // Previous suffix is final now
+            BuildRegister(path, common, register, states);
+
+            // New suffix
+            for (int i = common; i < key.length(); i++) {
+                BuildState state = new BuildState();
+                path.get(i).m_label.append(key.charAt(i));
+                path.get(i).m_target.add(state);
+                path.add(state);
+            }
+            path.get(key.length()).m_final++;
+            prev = key;
+        }
+        BuildRegister(path, 0, register, states);
+        BuildState root = path.get(0);
+        BuildCount(root);
+        root.m_id = states.size();
+        states.add(root);
+
+        // Transition offsets
+        int trans_num = 0;
+        for (BuildState state : states)
+            trans_num += state.m_target.size();
+
+        // Output
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + (4 * (3 * states.size() + 1)) + (6 * trans_num));
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putInt(states.size());
+        buf.putInt(trans_num);
+        buf.putInt(root.m_id);
+        int offset = 0;
+        for (BuildState state : states) {
+            buf.putInt(offset);
+            offset += state.m_target.size();
+        }
+        buf.putInt(offset);
+        for (BuildState state : states)
+            buf.putInt(state.m_count);
+        for (BuildState state : states)
+            buf.putInt(state.m_final);
+        for (BuildState state : states) {
+            for (BuildState target : state.m_target)
+                buf.putInt(target.m_id);
+        }
+        for (BuildState state : states) {
+            for (int i = 0; i < state.m_label.length(); i++)
+                buf.putChar(state.m_label.charAt(i));
+        }
+        os.write(buf.array());
+    }
+
+    private static void BuildRegister(ArrayList<BuildState> path, int depth, HashMap<String, BuildState> register, ArrayList<BuildState> states)
+    {
+        // Replace or register states of the finished suffix, deepest first
+        for (int i = path.size() - 1; i > depth; i--) {
+            BuildState state = path.remove(i);
+            BuildState parent = path.get(i - 1);
+            String sig = state.Signature();
+            BuildState known = register.get(sig);
+            if (known != null) {
+                parent.m_target.set(parent.m_target.size() - 1, known);
+            } else {
+                BuildCount(state);
+                state.m_id = states.size();
+                states.add(state);
+                register.put(sig, state);
+            }
+        }
+    }
+
+    private static void BuildCount(BuildState state)
+    {
+        state.m_count = state.m_final;
+        for (BuildState target : state.m_target)
+            state.m_count += target.m_count;
+    }
+}
@@ -22,23 +22,34 @@
 package ee.yutani.kotoba;
 
 // Imports
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.List;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.util.Log;
 
 // Data file words
 public class DataFileBase
 {
-    // Cache settings
-    private static final int CACHE_INITIAL_ROUNDS = 1;
-    private static final int CACHE_MAX_ROUNDS = 6;
+    // Front coded layout magic
+    private static final int FRONT_CODED_MAGIC = 0x3143464b;
+
+    // Key encoding
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Infix candidates read per wanted match, n-gram hits are verified against the key
+    private static final int INFIX_CANDIDATES = 4;
+
+    // Cache settings, levels of the implicit search tree kept in memory
+    public static final int CACHE_DEPTH = 12;
+    public static final int CACHE_BUDGET = 128 * 1024;
 
     // Base info data structure
     public static class BaseInfo implements Comparable<BaseInfo>
@@ -49,6 +60,7 @@ public class DataFileBase
         private float m_match;
         private int[] m_wref;
         private byte[] m_wrank;
+        private int m_distance = 0;
 
         // Constructor
         protected BaseInfo(int id, String text, float match, int[] wref, byte[] wrank)
@@ -67,6 +79,7 @@ public class DataFileBase
         public int Weight() { return m_wref.length; }
         public int[] Wref() { return m_wref; }
         public byte[] Wrank() { return m_wrank; }
+        public int Distance() { return m_distance; }
 
         // Comparator
         @Override public int compareTo(BaseInfo another)
@@ -109,17 +122,57 @@ public class DataFileBase
     // Entries
     private int m_entry_num = 0;
 
-    // Cache
-    private TreeMap<Integer, String> m_cache = new TreeMap<Integer, String>();
+    // Front coded layout with sparse index of first block keys
+    private boolean m_front_coded = false;
+    private int m_block_entries = 0;
+    private int m_block_num = 0;
+    private int[] m_block_offset = null;
+    private ByteBuffer m_block_key = null;
+    private int[] m_block_key_pos = null;
+
+    // Optional automaton index of the keys
+    private DataFileAutomaton m_automaton = null;
+
+    // Optional n-gram index of the keys
+    private DataFileNgram m_ngram = null;
+
+    // Cache, keys of the top tree levels in Eytzinger order, read only after loading
+    private int m_tree_nodes = 0;
+    private int[] m_tree_pos = null;
+    private ByteBuffer m_tree_key = null;
+
+    // Search query, encoded once so that probes compare bytes only
+    private static class BaseQuery
+    {
+        // Data
+        private String m_string;
+        private ByteBuffer m_text;
+        private int m_len;
+        private int m_units;
+
+        // Constructor
+        private BaseQuery(String text)
+        {
+            byte[] arr = text.getBytes(UTF8);
+            m_string = text;
+            m_text = ByteBuffer.wrap(arr);
+            m_len = arr.length;
+            m_units = text.length();
+        }
+    }
 
     // Constructor
     public DataFileBase(Context context, String fn)
+    {
+        this(context, fn, CACHE_DEPTH, CACHE_BUDGET);
+    }
+
+    public DataFileBase(Context context, String fn, int cache_depth, int cache_budget)
     {
         // Open file
         try {
-            // Raw stream
-            InputStream fs = context.getAssets().open("kotoba-base_" + fn + ".kdb", AssetManager.ACCESS_RANDOM);
-            m_ds = new DataStream(fs, false);
+            // Mapped file
+            m_ds = new DataStream(context, "kotoba-base_" + fn + ".kdb");
         } catch (IOException ex) {
             Log.e("DataFileBase::DataFileBase", "Asset opening: IO error", ex);
             return;
@@ -127,35 +180,243 @@ public class DataFileBase
 
         // Inital loading
         try {
+            Open(cache_depth, cache_budget);
+        } catch (IOException ex) {
+            Log.e("DataFileBase::DataFileBase", "Asset reading: IO error", ex);
+            return;
+        }
+
+        // Automaton index, searches fall back to the file when missing
+        try {
+            m_automaton = new DataFileAutomaton(context, "kotoba-base_" + fn + ".kfst");
+        } catch (IOException ex) {
+            m_automaton = null;
+        }
+        if (m_automaton != null && m_automaton.Size() != m_entry_num) {
+            Log.w("DataFileBase::DataFileBase", "Automaton does not match base file " + fn);
+            m_automaton = null;
+        }
+
+        // N-gram index, infix searches return nothing when missing
+        try {
+            m_ngram = new DataFileNgram(context, "kotoba-base_" + fn + ".kngr");
+        } catch (IOException ex) {
+            m_ngram = null;
+        }
+        if (m_ngram != null && m_ngram.Size() != m_entry_num) {
+            Log.w("DataFileBase::DataFileBase", "N-gram index does not match base file " + fn);
+            m_ngram = null;
+        }
+    }
+
+    // Constructors for files written by Build, automaton and n-gram index are optional
+    public DataFileBase(File file, int cache_depth, int cache_budget) throws IOException
+    {
+        this(file, null, null, cache_depth, cache_budget);
+    }
+
+    public DataFileBase(File file, File automaton, File ngram, int cache_depth, int cache_budget) throws IOException
+    {
+        m_ds = new DataStream(file);
+        Open(cache_depth, cache_budget);
+        if (automaton != null) {
+            m_automaton = new DataFileAutomaton(automaton);
+            if (m_automaton.Size() != m_entry_num)
+                throw new IOException("Automaton does not match base file");
+        }
+        if (ngram != null) {
+            m_ngram = new DataFileNgram(ngram);
+            if (m_ngram.Size() != m_entry_num)
+                throw new IOException("N-gram index does not match base file");
+        }
+    }
+
+    private void Open(int cache_depth, int cache_budget) throws IOException
+    {
+        if (m_ds.ReadInt(0) == FRONT_CODED_MAGIC) {
+            // Header
+            m_front_coded = true;
+            m_entry_num = m_ds.ReadInt(4);
+            m_block_entries = m_ds.ReadInt(8);
+            m_block_num = m_ds.ReadInt(12);
+
+            // Block offsets
+            m_offset_index = 16;
+            m_block_offset = m_ds.ReadIntArray(m_offset_index, m_block_num + 1);
+
+            // First keys of blocks, packed into one array
+            long offset_keys = m_offset_index + (4 * (m_block_num + 1));
+            int keys_len = m_ds.ReadInt(offset_keys);
+            ByteBuffer keys = m_ds.Buffer(offset_keys + 4, keys_len);
+            byte[] key_arr = new byte[keys_len];
+            m_block_key_pos = new int[m_block_num + 1];
+            for (int i = 0; i < m_block_num; i++) {
+                short key_len = keys.getShort();
+                keys.get(key_arr, m_block_key_pos[i], key_len);
+                m_block_key_pos[i + 1] = m_block_key_pos[i] + key_len;
+            }
+            m_block_key = ByteBuffer.wrap(key_arr);
+            m_offset_data = offset_keys + 4 + keys_len;
+
+        } else {
             // Get number of entries
-            m_entry_num = m_ds.ReadInt();
+            m_entry_num = m_ds.ReadInt(0);
 
             // Offsets
             m_offset_index = 4;
             m_offset_data = m_offset_index + (4 * (m_entry_num + 1));
 
             // Generate cache
-            CacheGenerate(0, m_entry_num, CACHE_INITIAL_ROUNDS);
+            CacheGenerate(cache_depth, cache_budget);
+        }
+    }
 
-        } catch (IOException ex) {
-            Log.e("DataFileBase::DataFileBase", "Asset reading: IO error", ex);
-            return;
+    // Building, keys sorted like String.compareTo with their encoded word references, front coded blocks of
+    // block_entries keys or the plain layout for 0
+    public static void Build(List<String> keys, List<int[]> wref, int block_entries, OutputStream os) throws IOException
+    {
+        // Records, front coded entries share a prefix with the previous key of their block
+        int num = keys.size();
+        int block_num = ((block_entries > 0) ? (num + block_entries - 1) / block_entries : 0);
+        int[] offset = new int[((block_entries > 0) ? block_num : num) + 1];
+        ArrayList<byte[]> first = new ArrayList<byte[]>();
+        ByteBuffer data = ByteBuffer.allocate(1024);
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] prev = new byte[0];
+        for (int id = 0; id < num; id++) {
+            byte[] key = keys.get(id).getBytes(UTF8);
+            int[] ref = wref.get(id);
+            if (data.remaining() < 8 + key.length + (4 * ref.length)) {
+                ByteBuffer grow = ByteBuffer.allocate(2 * (data.capacity() + key.length + (4 * ref.length)));
+                grow.order(ByteOrder.LITTLE_ENDIAN);
+                data.flip();
+                grow.put(data);
+                data = grow;
+            }
+
+            // Key
+            if (block_entries > 0) {
+                int prefix = 0;
+                if (id % block_entries == 0) {
+                    offset[id / block_entries] = data.position();
+                    first.add(key);
+                } else {
+                    while (prefix < key.length && prefix < prev.length && key[prefix] == prev[prefix])
+                        prefix++;
+                }
+                data.putShort((short) prefix);
+                data.putShort((short) (key.length - prefix));
+                data.put(key, prefix, key.length - prefix);
+                prev = key;
+            } else {
+                offset[id] = data.position();
+                data.putShort((short) key.length);
+                data.put(key);
+            }
+
+            // Wref
+            data.putShort((short) ref.length);
+            for (int value : ref)
+                data.putInt(value);
         }
+        offset[offset.length - 1] = data.position();
+
+        // Header, offsets and first keys of blocks
+        int keys_len = 0;
+        for (byte[] key : first)
+            keys_len += 2 + key.length;
+        ByteBuffer header = ByteBuffer.allocate(((block_entries > 0) ? 20 + keys_len : 4) + (4 * offset.length));
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (block_entries > 0) {
+            header.putInt(FRONT_CODED_MAGIC);
+            header.putInt(num);
+            header.putInt(block_entries);
+            header.putInt(block_num);
+        } else {
+            header.putInt(num);
+        }
+        for (int value : offset)
+            header.putInt(value);
+        if (block_entries > 0) {
+            header.putInt(keys_len);
+            for (byte[] key : first) {
+                header.putShort((short) key.length);
+                header.put(key);
+            }
+        }
+        os.write(header.array());
+        os.write(data.array(), 0, data.position());
+    }
+
+    // Identity of the file contents
+    public long Stamp()
+    {
+        return ((m_ds == null) ? 0 : m_ds.Stamp());
     }
 
     // Find
-    public synchronized ArrayList<BaseInfo> Find(String text, int num_matches)
+    public ArrayList<BaseInfo> Find(String text, int num_matches)
+    {
+        return Find(text, num_matches, null);
+    }
+
+    // Find, range holds the equal range of a prefix of text or -1 and receives the equal range of text
+    public ArrayList<BaseInfo> Find(String text, int num_matches, int[] range)
+    {
+        return Find(text, num_matches, range, null);
+    }
+
+    // Paged find, pos holds the number of equal matches returned so far and receives the next one or -1 once all
+    // are returned, later pages hold equal matches only
+    public ArrayList<BaseInfo> Find(String text, int num_matches, int[] range, int[] pos)
     {
+        long trace = DataTrace.Begin();
         try {
+            // Query
+            BaseQuery query = new BaseQuery(text);
+
+            // Keys outside the range of a prefix are known to compare unequal
+            int[] bound = new int[]{ 0, m_entry_num };
+            if (range != null && range[0] >= 0 && range[1] >= range[0] && range[1] <= m_entry_num) {
+                bound[0] = range[0];
+                bound[1] = range[1];
+            }
+
             // Find
             int[] ret = new int[]{ -1, -1 };
-            FindGeneral(ret, text);
+            ArrayList<BaseBlock> blocks = new ArrayList<BaseBlock>();
+            if (m_automaton != null)
+                m_automaton.Range(text, ret);
+            else if (m_front_coded)
+                FindBlock(ret, query, blocks, bound);
+            else
+                FindGeneral(ret, query, bound);
+            if (range != null) {
+                range[0] = ret[0];
+                range[1] = ret[1];
+            }
+
+            // Later page
+            if (pos != null && pos[0] > 0) {
+                int page_s = Math.min(ret[0] + pos[0], ret[1]);
+                int page_e = Math.min(page_s + num_matches, ret[1]);
+                pos[0] = ((page_e < ret[1]) ? page_e - ret[0] : -1);
+                ArrayList<BaseInfo> info = new ArrayList<BaseInfo>();
+                for (BaseInfo entry : InfoRange(page_s, page_e, query, blocks)) {
+                    if (entry != null)
+                        info.add(entry);
+                }
+                return info;
+            }
 
             // Cap equal matches
             int num_left = num_matches;
+            int range_end = ret[1];
             if (ret[1] - ret[0] > num_matches)
                 ret[1] = ret[0] + num_matches;
             num_left -= ret[1] - ret[0];
+            if (pos != null)
+                pos[0] = ((ret[0] + num_matches < range_end) ? num_matches : -1);
 
             // Pre and post matches
             int ret_lb = ret[0] - (num_left / 2);
@@ -164,50 +425,31 @@ public class DataFileBase
             int ret_ub = ret_lb + num_matches;
             if (ret_ub > m_entry_num) {
                 ret_ub = m_entry_num;
-                ret_lb = ret_ub - num_matches;
+                ret_lb = Math.max(ret_ub - num_matches, 0);
             }
 
-            // Read offsets
-            m_ds.Seek(m_offset_index + (4 * ret_lb));
-            int[] offsets = m_ds.ReadIntArray(num_matches + 1);
-
-            // Read data
-            m_ds.Seek(m_offset_data + offsets[0]);
-            byte[] data = new byte[offsets[num_matches] - offsets[0]];
-            m_ds.Read(data);
-
-            // Data buffer
-            ByteBuffer buf = ByteBuffer.wrap(data);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
+            // Read entries
+            BaseInfo[] entries = InfoRange(ret_lb, ret_ub, query, blocks);
 
             // Entries
             ArrayList<BaseInfo> info = new ArrayList<BaseInfo>();
 
             // Equal matches
-            for (int i = 0; i < ret[1] - ret[0]; i++) {
-                int id = ret[0] + i - ret_lb;
-                buf.position(offsets[id] - offsets[0]);
-                BaseInfo entry = InfoEntry(ret[0] + i, buf, text);
-                if (entry != null)
-                    info.add(entry);
+            for (int i = ret[0]; i < ret[1]; i++) {
+                if (entries[i - ret_lb] != null)
+                    info.add(entries[i - ret_lb]);
             }
 
             // Post matches
-            for (int i = 0; i < ret_ub - ret[1]; i++) {
-                int id = ret[1] + i - ret_lb;
-                buf.position(offsets[id] - offsets[0]);
-                BaseInfo entry = InfoEntry(ret_ub + i, buf, text);
-                if (entry != null)
-                    info.add(entry);
+            for (int i = ret[1]; i < ret_ub; i++) {
+                if (entries[i - ret_lb] != null)
+                    info.add(entries[i - ret_lb]);
             }
 
             // Pre matches
-            for (int i = 0; i < ret[0] - ret_lb; i++) {
-                int id = i;
-                buf.position(offsets[id] - offsets[0]);
-                BaseInfo entry = InfoEntry(ret_lb + i, buf, text);
-                if (entry != null)
-                    info.add(entry);
+            for (int i = ret_lb; i < ret[0]; i++) {
+                if (entries[i - ret_lb] != null)
+                    info.add(entries[i - ret_lb]);
             }
 
             // Result
@@ -216,17 +458,166 @@ public class DataFileBase
         } catch (IOException ex) {
             Log.e("DataFileBase::Find", "IO error", ex);
             return null;
+        } finally {
+            DataTrace.End("DataFileBase::Find", trace);
         }
     }
 
+    // Closest keys within edit distance other than the ones starting with text, empty without automaton index
+    public ArrayList<BaseInfo> FindFuzzy(String text, int distance, int num_matches)
+    {
+        return FindFuzzy(text, distance, num_matches, null);
+    }
+
+    // Paged fuzzy find, pos holds the number of closest keys returned so far and receives the next one or -1 once
+    // all are returned, the automaton is walked again but only new entries are read
+    public ArrayList<BaseInfo> FindFuzzy(String text, int distance, int num_matches, int[] pos)
+    {
+        ArrayList<BaseInfo> info = new ArrayList<BaseInfo>();
+        if (m_automaton == null) {
+            if (pos != null)
+                pos[0] = -1;
+            return info;
+        }
+
+        // Matching keys
+        long trace = DataTrace.Begin();
+        int skip = ((pos == null) ? 0 : Math.max(pos[0], 0));
+        int[] id = new int[skip + num_matches];
+        int[] dist = new int[skip + num_matches];
+        int num = m_automaton.Fuzzy(text, distance, id, dist);
+        if (pos != null)
+            pos[0] = ((num == id.length) ? num : -1);
+
+        // Entries
+        try {
+            ArrayList<BaseBlock> blocks = new ArrayList<BaseBlock>();
+            for (int i = skip; i < num; i++) {
+                BaseInfo entry = InfoRange(id[i], id[i] + 1, null, blocks)[0];
+                entry.m_distance = dist[i];
+                info.add(entry);
+            }
+        } catch (IOException ex) {
+            Log.e("DataFileBase::FindFuzzy", "IO error", ex);
+        }
+        DataTrace.End("DataFileBase::FindFuzzy", trace);
+        return info;
+    }
+
+    // Keys containing text past their start, empty without n-gram index
+    public ArrayList<BaseInfo> FindInfix(String text, int num_matches)
+    {
+        return FindInfix(text, num_matches, null);
+    }
+
+    // Paged infix find, pos holds the first candidate id and receives the next one or -1 once all are returned
+    public ArrayList<BaseInfo> FindInfix(String text, int num_matches, int[] pos)
+    {
+        ArrayList<BaseInfo> info = new ArrayList<BaseInfo>();
+        if (m_ngram == null || text.length() == 0) {
+            if (pos != null)
+                pos[0] = -1;
+            return info;
+        }
+
+        // Candidates
+        long trace = DataTrace.Begin();
+        int id_s = ((pos == null) ? 0 : Math.max(pos[0], 0));
+        int[] id = m_ngram.FindKeys(DataFileNgram.Grams(text), id_s, INFIX_CANDIDATES * num_matches);
+        if (pos != null)
+            pos[0] = ((id.length == INFIX_CANDIDATES * num_matches) ? id[id.length - 1] + 1 : -1);
+
+        // Entries
+        try {
+            ArrayList<BaseBlock> blocks = new ArrayList<BaseBlock>();
+            for (int i = 0; i < id.length; i++) {
+                if (id[i] < 0 || id[i] >= m_entry_num)
+                    continue;
+
+                // Full page, the next one starts from this candidate
+                if (info.size() == num_matches) {
+                    if (pos != null)
+                        pos[0] = id[i];
+                    break;
+                }
+
+                // Verify, prefix matches are found by Find
+                BaseInfo entry = InfoRange(id[i], id[i] + 1, null, blocks)[0];
+                if (entry.m_text.indexOf(text) <= 0)
+                    continue;
+                entry.m_match = (float)text.length() / (float)entry.m_text.length();
+                info.add(entry);
+            }
+        } catch (IOException ex) {
+            Log.e("DataFileBase::FindInfix", "IO error", ex);
+        }
+        DataTrace.End("DataFileBase::FindInfix", trace);
+        return info;
+    }
+
+    // Completions, null without automaton index
+    public ArrayList<String> Complete(String text, int num_matches)
+    {
+        if (m_automaton == null)
+            return null;
+        return m_automaton.Complete(text, num_matches);
+    }
+
     // Entry reading
-    private BaseInfo InfoEntry(int id, ByteBuffer buf, String text_find) throws IOException
+    private BaseInfo[] InfoRange(int id_s, int id_e, BaseQuery query, ArrayList<BaseBlock> blocks) throws IOException
+    {
+        BaseInfo[] ret = new BaseInfo[id_e - id_s];
+        if (id_e <= id_s)
+            return ret;
+
+        if (m_front_coded) {
+            // Blocks covering range
+            for (int block = id_s / m_block_entries; block * m_block_entries < id_e; block++) {
+                BaseBlock data = BlockRead(block, blocks);
+                for (int i = 0; i < data.m_pos_wref.length; i++) {
+                    int id = data.m_id_start + i;
+                    if (id >= id_s && id < id_e) {
+                        data.m_buf.position(data.m_pos_wref[i]);
+                        int key_pos = data.m_key_pos[i];
+                        ret[id - id_s] = InfoEntry(id, data.m_keys, key_pos, data.m_key_pos[i + 1] - key_pos, data.m_buf, query);
+                    }
+                }
+            }
+        } else {
+            // Read offsets
+            int[] offsets = m_ds.ReadIntArray(m_offset_index + (4 * id_s), id_e - id_s + 1);
+
+            // Data buffer
+            ByteBuffer buf = m_ds.Buffer(m_offset_data + offsets[0], offsets[id_e - id_s] - offsets[0]);
+
+            // Entries
+            for (int i = 0; i < ret.length; i++) {
+                int key_pos = offsets[i] - offsets[0] + 2;
+                int key_len = buf.getShort(key_pos - 2);
+                buf.position(key_pos + key_len);
+                ret[i] = InfoEntry(id_s + i, buf, key_pos, key_len, buf, query);
+            }
+        }
+        return ret;
+    }
+
+    private BaseInfo InfoEntry(int id, ByteBuffer key, int key_pos, int key_len, ByteBuffer buf, BaseQuery query)
     {
-        // String
-        short text_len = buf.getShort();
-        byte[] text_arr = new byte[text_len];
-        buf.get(text_arr);
-        String text_cmp = new String(text_arr, "UTF-8");
+        // Matching factor, fuzzy matches have no query
+        float match = 1.0f;
+        if (query != null) {
+            int cmp = TextCompare(query, key, key_pos, key_len);
+            if (cmp == 0) {
+                int units = TextUnits(key, key_pos, key_len);
+                if (query.m_units < units)
+                    match = (float)units / (float)query.m_units;
+            } else {
+                int num = TextCommon(query, key, key_pos, key_len);
+                if (num == 0)
+                    return null;
+                match = (float)num / (float)query.m_units;
+            }
+        }
 
         // Wref
         short wref_len = buf.getShort();
@@ -238,25 +629,117 @@ public class DataFileBase
             wref[i] = 0x0fffffff & obj;
         }
 
-        // Matching factor
-        float match = 1.0f;
-        int cmp = TextCompare(text_find, text_cmp);
-        if (cmp == 0) {
-            if (text_find.length() < text_cmp.length())
-                match = (float)text_cmp.length() / (float)text_find.length();
-        } else {
-            int num = 0;
-            for (num = 0; num < text_find.length() && num < text_cmp.length(); num++) {
-                if (text_find.charAt(num) != text_cmp.charAt(num))
-                    break;
-            }
-            if (num == 0)
-                return null;
-            match = (float)num / (float)text_find.length();
+        // Create
+        return new BaseInfo(id, TextString(key, key_pos, key_len), match, wref, wrank);
+    }
+
+    // Front coded blocks
+    private static class BaseBlock
+    {
+        // Entries
+        private int m_id_start;
+        private ByteBuffer m_keys;
+        private int[] m_key_pos;
+        private int[] m_pos_wref;
+
+        // Data
+        private ByteBuffer m_buf;
+    }
+
+    private BaseBlock BlockRead(int block, ArrayList<BaseBlock> blocks) throws IOException
+    {
+        // Already read for this search
+        for (BaseBlock data : blocks) {
+            if (data.m_id_start == block * m_block_entries)
+                return data;
         }
 
-        // Create
-        return new BaseInfo(id, text_cmp, match, wref, wrank);
+        // Data buffer
+        BaseBlock data = new BaseBlock();
+        data.m_id_start = block * m_block_entries;
+        data.m_buf = m_ds.Buffer(m_offset_data + m_block_offset[block], m_block_offset[block + 1] - m_block_offset[block]);
+
+        // Entries
+        int num = Math.min(m_block_entries, m_entry_num - data.m_id_start);
+        data.m_key_pos = new int[num + 1];
+        data.m_pos_wref = new int[num];
+
+        // Decode keys, each sharing a prefix with the previous key
+        byte[] keys = new byte[2 * data.m_buf.remaining()];
+        int key_prev = 0;
+        for (int i = 0; i < num; i++) {
+            // Key
+            int prefix = data.m_buf.getShort();
+            int suffix = data.m_buf.getShort();
+            int key_pos = data.m_key_pos[i];
+            if (key_pos + prefix + suffix > keys.length)
+                keys = Arrays.copyOf(keys, 2 * (key_pos + prefix + suffix));
+            System.arraycopy(keys, key_prev, keys, key_pos, prefix);
+            data.m_buf.get(keys, key_pos + prefix, suffix);
+            data.m_key_pos[i + 1] = key_pos + prefix + suffix;
+            key_prev = key_pos;
+
+            // Skip wref
+            data.m_pos_wref[i] = data.m_buf.position();
+            data.m_buf.position(data.m_pos_wref[i] + 2 + (4 * data.m_buf.getShort()));
+        }
+        data.m_keys = ByteBuffer.wrap(keys);
+        blocks.add(data);
+        return data;
+    }
+
+    private void FindBlock(int[] ret, BaseQuery query, ArrayList<BaseBlock> blocks, int[] bound) throws IOException
+    {
+        // Empty file has no blocks to read
+        if (m_entry_num == 0) {
+            ret[0] = 0;
+            ret[1] = 0;
+            return;
+        }
+
+        // Lower bound, first block key that is not below text is never in an earlier block
+        int block_lb = BlockSearch(query, false, bound);
+        BaseBlock data = BlockRead(block_lb, blocks);
+        ret[0] = BlockScan(data, query, false, bound);
+
+        // Upper bound
+        int block_ub = BlockSearch(query, true, bound);
+        if (block_ub != block_lb)
+            data = BlockRead(block_ub, blocks);
+        ret[1] = BlockScan(data, query, true, bound);
+        if (ret[1] < ret[0])
+            ret[1] = ret[0];
+    }
+
+    private int BlockScan(BaseBlock data, BaseQuery query, boolean upper, int[] bound)
+    {
+        // First entry above text (upper) or not below text (lower)
+        for (int i = Math.max(bound[0] - data.m_id_start, 0); i < data.m_pos_wref.length; i++) {
+            if (data.m_id_start + i >= bound[1])
+                return data.m_id_start + i;
+            int key_pos = data.m_key_pos[i];
+            int cmp = TextCompare(query, data.m_keys, key_pos, data.m_key_pos[i + 1] - key_pos);
+            if (cmp < 0 || (!upper && cmp == 0))
+                return data.m_id_start + i;
+        }
+        return data.m_id_start + data.m_pos_wref.length;
+    }
+
+    private int BlockSearch(BaseQuery query, boolean upper, int[] bound)
+    {
+        // Last block whose first key is below text (lower) or not above text (upper), blocks starting outside bound are known
+        int arr_s = (bound[0] + m_block_entries - 1) / m_block_entries;
+        int arr_e = Math.max(arr_s, Math.min((bound[1] + m_block_entries - 1) / m_block_entries, m_block_num));
+        while (arr_e > arr_s) {
+            int arr_m = BinaryDivide(arr_s, arr_e);
+            int key_pos = m_block_key_pos[arr_m];
+            int cmp = TextCompare(query, m_block_key, key_pos, m_block_key_pos[arr_m + 1] - key_pos);
+            if (cmp > 0 || (upper && cmp == 0))
+                arr_s = arr_m + 1;
+            else
+                arr_e = arr_m;
+        }
+        return Math.max(arr_s - 1, 0);
     }
 
     // Binary tree functions
@@ -265,64 +748,92 @@ public class DataFileBase
         return arr_s + ((arr_e - arr_s) / 2);
     }
 
-    private String BinaryLookup(int id) throws IOException
+    private ByteBuffer BinaryLookup(int id) throws IOException
     {
         // Check
         assert(id >= 0 && id < m_entry_num);
 
-        // Read offsets
-        m_ds.Seek(m_offset_index + (4 * id));
-        int[] offsets = m_ds.ReadIntArray(2);
-
-        // Read data
-        m_ds.Seek(m_offset_data + offsets[0]);
-        byte[] data = new byte[offsets[1] - offsets[0]];
-        m_ds.Read(data);
-
-        // Data buffer
-        ByteBuffer buf = ByteBuffer.wrap(data);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
+        // Read offset
+        int offset = m_ds.ReadInt(m_offset_index + (4 * id));
 
-        // String
-        short text_len = buf.getShort();
-        byte[] text_arr = new byte[text_len];
-        buf.get(text_arr);
-        return new String(text_arr, "UTF-8");
+        // Key bytes
+        short text_len = m_ds.ReadShort(m_offset_data + offset);
+        return m_ds.Buffer(m_offset_data + offset + 2, text_len);
     }
 
     // Cache
-    private void CacheGenerate(int arr_s, int arr_e, int level) throws IOException
+    private void CacheGenerate(int depth, int budget) throws IOException
     {
-        // Lookup
-        int arr_m = BinaryDivide(arr_s, arr_e);
-        m_cache.put(arr_m, BinaryLookup(arr_m));
+        // Nodes of the complete levels, never deeper than the tree itself
+        depth = Math.min(depth, 32 - Integer.numberOfLeadingZeros(m_entry_num));
+        int nodes = (1 << depth) - 1;
+        int[] ids = new int[nodes];
+        Arrays.fill(ids, -1);
+        CacheNodes(ids, 1, 0, m_entry_num);
+
+        // Keys in node order, whole levels within the budget
+        byte[] pool = new byte[Math.min(budget, 64 * nodes)];
+        int[] pos = new int[nodes + 1];
+        int level_end = 1;
+        for (int node = 1; node <= nodes; node++) {
+            // Key
+            pos[node] = pos[node - 1];
+            if (ids[node - 1] >= 0) {
+                // A level over budget is never completed
+                ByteBuffer key = BinaryLookup(ids[node - 1]);
+                if (pos[node] + key.limit() > budget)
+                    break;
+                if (pos[node] + key.limit() > pool.length)
+                    pool = Arrays.copyOf(pool, Math.min(2 * (pos[node] + key.limit()), budget));
+                key.get(pool, pos[node], key.limit());
+                pos[node] += key.limit();
+            }
 
-        // Rescurse
-        level--;
-        if (level > 0) {
-            CacheGenerate(arr_s, arr_m, level);
-            CacheGenerate(arr_m, arr_e, level);
+            // Level done
+            if (node == level_end) {
+                m_tree_nodes = node;
+                level_end = (2 * node) + 1;
+            }
         }
+
+        // Tree, without the level over budget and the unused growth of the pool
+        m_tree_pos = Arrays.copyOf(pos, m_tree_nodes + 1);
+        m_tree_key = ByteBuffer.wrap(Arrays.copyOf(pool, pos[m_tree_nodes]));
     }
 
-    private String CacheLookup(int arr_m, int round) throws IOException
+    private void CacheNodes(int[] ids, int node, int arr_s, int arr_e)
     {
-        // Lookup
-        if (m_cache.containsKey(arr_m)) {
-            return m_cache.get(arr_m);
-        } else {
-            String str = BinaryLookup(arr_m);
-            if (round < CACHE_MAX_ROUNDS)
-                m_cache.put(arr_m, str);
-            return str;
-        }
+        // Same split as the search, left [s, m) and right [m + 1, e)
+        if (node > ids.length || arr_e <= arr_s)
+            return;
+        int arr_m = BinaryDivide(arr_s, arr_e);
+        ids[node - 1] = arr_m;
+        CacheNodes(ids, 2 * node, arr_s, arr_m);
+        CacheNodes(ids, (2 * node) + 1, arr_m + 1, arr_e);
+    }
+
+    private int CacheCompare(BaseQuery query, int node, int arr_m, int[] bound) throws IOException
+    {
+        // Known from the range of a prefix
+        if (arr_m < bound[0])
+            return 1;
+        if (arr_m >= bound[1])
+            return -1;
+
+        // Cached
+        if (node <= m_tree_nodes)
+            return TextCompare(query, m_tree_key, m_tree_pos[node - 1], m_tree_pos[node] - m_tree_pos[node - 1]);
+
+        // Disk
+        ByteBuffer key = BinaryLookup(arr_m);
+        return TextCompare(query, key, 0, key.limit());
     }
 
     // Finds
-    private void FindGeneral(int[] ret, String text) throws IOException
+    private void FindGeneral(int[] ret, BaseQuery query, int[] bound) throws IOException
     {
-        // Rounds
-        int round = 0;
+        // Tree node
+        int node = 1;
 
         // Array bounds
         int arr_s = 0;
@@ -330,18 +841,18 @@ public class DataFileBase
 
         // Loop
         while (arr_e > arr_s) {
-            round++;
             int arr_m = BinaryDivide(arr_s, arr_e);
-            String cmp_tmp = CacheLookup(arr_m, round);
-            int cmp = TextCompare(text, cmp_tmp);
+            int cmp = CacheCompare(query, node, arr_m, bound);
             if (cmp < 0) {
                 arr_e = arr_m;
+                node = 2 * node;
             } else if (cmp > 0) {
                 arr_s = arr_m + 1;
+                node = (2 * node) + 1;
             } else {
                 // Split the search
-                ret[0] = FindLower(arr_s, arr_m, text, round);
-                ret[1] = FindUpper(arr_m, arr_e, text, round);
+                ret[0] = FindLower(arr_s, arr_m, query, 2 * node, bound);
+                ret[1] = FindUpper(arr_m + 1, arr_e, query, (2 * node) + 1, bound);
                 return;
             }
         }
@@ -351,43 +862,106 @@ public class DataFileBase
         ret[1] = arr_e;
     }
 
-    private int FindLower(int arr_s, int arr_e, String text, int round) throws IOException
+    private int FindLower(int arr_s, int arr_e, BaseQuery query, int node, int[] bound) throws IOException
     {
         while (arr_e > arr_s) {
-            round++;
             int arr_m = BinaryDivide(arr_s, arr_e);
-            String cmp_tmp = CacheLookup(arr_m, round);
-            if (TextCompare(text, cmp_tmp) <= 0) {
+            if (CacheCompare(query, node, arr_m, bound) <= 0) {
                 arr_e = arr_m;
+                node = 2 * node;
             } else {
                 arr_s = arr_m + 1;
+                node = (2 * node) + 1;
             }
         }
         return arr_s;
     }
 
-    private int FindUpper(int arr_s, int arr_e, String text, int round) throws IOException
+    private int FindUpper(int arr_s, int arr_e, BaseQuery query, int node, int[] bound) throws IOException
     {
         while (arr_e > arr_s) {
-            round++;
             int arr_m = BinaryDivide(arr_s, arr_e);
-            String cmp_tmp = CacheLookup(arr_m, round);
-            if (TextCompare(text, cmp_tmp) > 0) {
+            if (CacheCompare(query, node, arr_m, bound) >= 0) {
                 arr_s = arr_m + 1;
+                node = (2 * node) + 1;
             } else {
                 arr_e = arr_m;
+                node = 2 * node;
             }
         }
         return arr_s;
     }
 
-    // Text
-    private int TextCompare(String text, String cmp)
+    // Text, UTF-8 keys ordered like String.compareTo on the common prefix
+    private static int TextCompare(BaseQuery query, ByteBuffer cmp, int cmp_pos, int cmp_len)
+    {
+        ByteBuffer text = query.m_text;
+        int len = Math.min(query.m_len, cmp_len);
+        for (int i = 0; i < len; i++) {
+            if (text.get(i) != cmp.get(cmp_pos + i)) {
+                // Back to the start of the differing code point
+                while (i > 0 && (text.get(i) & 0xc0) == 0x80)
+                    i--;
+                return TextCodeCompare(TextCodePoint(text, i), TextCodePoint(cmp, cmp_pos + i));
+            }
+        }
+        return 0;
+    }
+
+    private static int TextCodeCompare(int cp_a, int cp_b)
+    {
+        // Compare the UTF-16 units, supplementary characters sort by their surrogates
+        int unit_a = (cp_a < 0x10000) ? cp_a : (0xd800 + ((cp_a - 0x10000) >> 10));
+        int unit_b = (cp_b < 0x10000) ? cp_b : (0xd800 + ((cp_b - 0x10000) >> 10));
+        if (unit_a != unit_b)
+            return unit_a - unit_b;
+        return (cp_a & 0x3ff) - (cp_b & 0x3ff);
+    }
+
+    private static int TextCodePoint(ByteBuffer buf, int pos)
+    {
+        int b = buf.get(pos) & 0xff;
+        if (b < 0x80)
+            return b;
+        if (b < 0xe0)
+            return ((b & 0x1f) << 6) | (buf.get(pos + 1) & 0x3f);
+        if (b < 0xf0)
+            return ((b & 0x0f) << 12) | ((buf.get(pos + 1) & 0x3f) << 6) | (buf.get(pos + 2) & 0x3f);
+        return ((b & 0x07) << 18) | ((buf.get(pos + 1) & 0x3f) << 12) | ((buf.get(pos + 2) & 0x3f) << 6) | (buf.get(pos + 3) & 0x3f);
+    }
+
+    private static int TextUnits(ByteBuffer buf, int pos, int len)
+    {
+        // Length in UTF-16 units
+        int units = 0;
+        for (int i = pos; i < pos + len; i++) {
+            int b = buf.get(i) & 0xff;
+            if ((b & 0xc0) != 0x80)
+                units += ((b >= 0xf0) ? 2 : 1);
+        }
+        return units;
+    }
+
+    private static int TextCommon(BaseQuery query, ByteBuffer cmp, int cmp_pos, int cmp_len)
+    {
+        // Common prefix in UTF-16 units
+        ByteBuffer text = query.m_text;
+        int len = Math.min(query.m_len, cmp_len);
+        int i = 0;
+        while (i < len && text.get(i) == cmp.get(cmp_pos + i))
+            i++;
+        if (i < len) {
+            while (i > 0 && (text.get(i) & 0xc0) == 0x80)
+                i--;
+        }
+        return TextUnits(text, 0, i);
+    }
+
+    private static String TextString(ByteBuffer buf, int pos, int len)
     {
-        if (text.length() > cmp.length())
-            text = text.substring(0, cmp.length());
-        else if (text.length() < cmp.length())
-            cmp = cmp.substring(0, text.length());
-        return text.compareTo(cmp);
+        byte[] arr = new byte[len];
+        for (int i = 0; i < len; i++)
+            arr[i] = buf.get(pos + i);
+        return new String(arr, UTF8);
     }
 }
@@ -23,11 +23,10 @@ package ee.yutani.kotoba;
 
 // Imports
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.util.Log;
 
 // Category file
@@ -56,20 +55,14 @@ public class DataFileCategory
         public String Name() { return m_name; }
         public int WordsLength() { return m_words_num; }
         public int[] WordsArray() { return WordsArray(0, m_words_num); }
-        public synchronized int[] WordsArray(int offset, int num)
+        public int[] WordsArray(int offset, int num)
         {
             // Check
             assert(offset >= 0 && offset < m_words_num);
             assert(offset + num <= m_words_num);
 
-            // IO operations
-            try {
-                m_ds.Seek(m_words_offset + (4 * offset));
-                return m_ds.ReadIntArray(num);
-            } catch (IOException ex) {
-                Log.e("DataFileCategory::CategoryInfo::WordsArray", "IO error", ex);
-                return null;
-            }
+            // Read
+            return m_ds.ReadIntArray(m_words_offset + (4 * offset), num);
         }
     }
 
@@ -89,9 +82,8 @@ public class DataFileCategory
     {
         // Open file
         try {
-            // Raw stream
-            InputStream fs = context.getAssets().open("kotoba-category.kdb", AssetManager.ACCESS_RANDOM);
-            m_ds = new DataStream(fs, true);
+            // Mapped file
+            m_ds = new DataStream(context, "kotoba-category.kdb");
         } catch (IOException ex) {
             Log.e("DataFileCategory::DataFileCategory", "Asset opening: IO error", ex);
             return;
@@ -100,26 +92,30 @@ public class DataFileCategory
         // Inital loading
         try {
             // Get number of entries
-            m_entry_num = m_ds.ReadInt();
+            m_entry_num = m_ds.ReadInt(0);
 
             // Offsets
             m_offset_index = 4;
             m_offset_data = m_offset_index + (4 * (m_entry_num + 1));
 
             // Read full index
-            int[] index_off = m_ds.ReadIntArray(m_entry_num + 1);
+            int[] index_off = m_ds.ReadIntArray(m_offset_index, m_entry_num + 1);
 
             // Read basic entry info
             for (int i = 0; i < m_entry_num; i++) {
-                // Seek
-                m_ds.Seek(m_offset_data + index_off[i]);
+                // Data buffer
+                long offset = m_offset_data + index_off[i];
+                ByteBuffer buf = m_ds.Buffer(offset, index_off[i + 1] - index_off[i]);
 
                 // Read data
-                String name = m_ds.ReadString();
-                int words_num = m_ds.ReadInt();
+                short name_len = buf.getShort();
+                byte[] name_arr = new byte[name_len];
+                buf.get(name_arr);
+                String name = new String(name_arr, "UTF-8");
+                int words_num = buf.getInt();
 
                 // Entry
-                CategoryInfo info = new CategoryInfo(i, name, words_num, m_ds.Offset());
+                CategoryInfo info = new CategoryInfo(i, name, words_num, offset + buf.position());
                 m_entry_info.add(info);
             }
 
@@ -0,0 +1,498 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+import android.content.Context;
+
+// Inverted index of character unigrams and bigrams, posting lists of entry ids
+public class DataFileNgram
+{
+    // File header, number of grams then number of entries
+    public static final int MAGIC = 0x32474e4b;
+    private static final int HEADER = 12;
+
+    // Posting entries between skip table entries
+    private static final int SKIP = 64;
+
+    // Unigram marker in place of the second character
+    private static final int UNIGRAM = 0xffff;
+
+    // Key ranges of building passes
+    private static final int BUCKETS = 0x10000;
+
+    // Posting list cursor
+    private static class Posting
+    {
+        // Data
+        private ByteBuffer m_buf;
+        private int m_count;
+        private int m_skip_num;
+        private int m_data;
+
+        // Position, index -1 before the first entry
+        private int m_index = -1;
+        private int m_id = 0;
+        private int m_pos = 0;
+
+        // Constructor
+        private Posting(ByteBuffer buf)
+        {
+            m_buf = buf;
+            m_count = buf.getInt(0);
+            m_skip_num = buf.getInt(4);
+            m_data = 8 + (8 * m_skip_num);
+            m_pos = m_data;
+        }
+
+        // Skip table, id of entry k * SKIP and position after it
+        private int SkipId(int k) { return m_buf.getInt(8 + (8 * k)); }
+        private int SkipPos(int k) { return m_buf.getInt(12 + (8 * k)); }
+
+        // Next entry
+        private boolean Next()
+        {
+            if (m_index + 1 >= m_count)
+                return false;
+
+            // Varint delta
+            int delta = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = m_buf.get(m_pos++);
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            m_id = ((m_index < 0) ? delta : (m_id + delta));
+            m_index++;
+            return true;
+        }
+
+        // First entry not below target, galloping over the skip table
+        private boolean Advance(int target)
+        {
+            if (m_index >= 0 && m_id >= target)
+                return true;
+
+            // Gallop
+            int skip_s = Math.max(m_index, 0) / SKIP;
+            int step = 1;
+            while (skip_s + step < m_skip_num && SkipId(skip_s + step) <= target)
+                step *= 2;
+
+            // Last skip entry not above target
+            int arr_s = skip_s + (step / 2);
+            int arr_e = Math.min(skip_s + step, m_skip_num);
+            while (arr_e - arr_s > 1) {
+                int arr_m = arr_s + ((arr_e - arr_s) / 2);
+                if (SkipId(arr_m) <= target)
+                    arr_s = arr_m;
+                else
+                    arr_e = arr_m;
+            }
+
+            // Jump forward
+            if (arr_s < m_skip_num && arr_s * SKIP > m_index && SkipId(arr_s) <= target) {
+                m_index = arr_s * SKIP;
+                m_id = SkipId(arr_s);
+                m_pos = SkipPos(arr_s);
+            }
+
+            // Scan block
+            while (m_index < 0 || m_id < target) {
+                if (!Next())
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    // File
+    private DataStream m_ds = null;
+
+    // Entries
+    private int m_entry_num = 0;
+
+    // Grams
+    private int m_gram_num = 0;
+    private long m_offset_gram = 0;
+    private long m_offset_posting = 0;
+    private long m_offset_data = 0;
+
+    // Constructor
+    public DataFileNgram(Context context, String fn) throws IOException
+    {
+        this(new DataStream(context, fn), fn);
+    }
+
+    public DataFileNgram(File file) throws IOException
+    {
+        this(new DataStream(file), file.getName());
+    }
+
+    private DataFileNgram(DataStream ds, String fn) throws IOException
+    {
+        // Header
+        m_ds = ds;
+        if (m_ds.ReadInt(0) != MAGIC)
+            throw new IOException("Invalid n-gram file " + fn);
+        m_gram_num = m_ds.ReadInt(4);
+        m_entry_num = m_ds.ReadInt(8);
+
+        // Offsets
+        m_offset_gram = HEADER;
+        m_offset_posting = m_offset_gram + (4 * m_gram_num);
+        m_offset_data = m_offset_posting + (4 * (m_gram_num + 1));
+    }
+
+    // Identity of the file contents
+    public long Stamp()
+    {
+        return m_ds.Stamp();
+    }
+
+    // Number of entries indexed, ids are below it
+    public int Size()
+    {
+        return m_entry_num;
+    }
+
+    // Entries containing all grams of text, in id order
+    public int[] Find(String text, int num)
+    {
+        return FindKeys(Grams(text), 0, num);
+    }
+
+    // Entries from id_s on containing all keys, in id order
+    public int[] FindKeys(int[] grams, int id_s, int num)
+    {
+        if (grams.length == 0)
+            return new int[0];
+
+        // Posting lists, shortest first
+        Posting[] list = new Posting[grams.length];
+        for (int i = 0; i < grams.length; i++) {
+            list[i] = PostingList(grams[i]);
+            if (list[i] == null)
+                return new int[0];
+        }
+        Arrays.sort(list, new Comparator<Posting>() {
+            @Override public int compare(Posting a, Posting b)
+            {
+                return ((a.m_count < b.m_count) ? -1 : ((a.m_count > b.m_count) ? 1 : 0));
+            }
+        });
+
+        // Intersection
+        int[] ret = new int[Math.min(num, list[0].m_count)];
+        int ret_num = 0;
+        Posting lead = list[0];
+        boolean more = lead.Advance(id_s);
+        while (more && ret_num < ret.length) {
+            int id = lead.m_id;
+            boolean found = true;
+            for (int i = 1; i < list.length; i++) {
+                if (!list[i].Advance(id))
+                    return Arrays.copyOf(ret, ret_num);
+                if (list[i].m_id > id) {
+                    more = lead.Advance(list[i].m_id);
+                    found = false;
+                    break;
+                }
+            }
+            if (found) {
+                ret[ret_num++] = id;
+                more = lead.Next();
+            }
+        }
+        return Arrays.copyOf(ret, ret_num);
+    }
+
+    private Posting PostingList(int gram)
+    {
+        // Binary search of gram table
+        int arr_s = 0;
+        int arr_e = m_gram_num;
+        while (arr_e > arr_s) {
+            int arr_m = arr_s + ((arr_e - arr_s) / 2);
+            int cmp = m_ds.ReadInt(m_offset_gram + (4 * arr_m));
+            if (cmp < gram) {
+                arr_s = arr_m + 1;
+            } else if (cmp > gram) {
+                arr_e = arr_m;
+            } else {
+                int offset_s = m_ds.ReadInt(m_offset_posting + (4 * arr_m));
+                int offset_e = m_ds.ReadInt(m_offset_posting + (4 * (arr_m + 1)));
+                return new Posting(m_ds.Buffer(m_offset_data + offset_s, offset_e - offset_s));
+            }
+        }
+        return null;
+    }
+
+    // Distinct grams, bigrams or a unigram for single characters
+    public static int[] Grams(String text)
+    {
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        if (text.length() == 1)
+            set.add(Gram(text.charAt(0), UNIGRAM));
+        for (int i = 0; i + 1 < text.length(); i++)
+            set.add(Gram(text.charAt(i), text.charAt(i + 1)));
+        int[] ret = new int[set.size()];
+        int i = 0;
+        for (int gram : set)
+            ret[i++] = gram;
+        return ret;
+    }
+
+    private static int Gram(int c1, int c2)
+    {
+        return (c1 << 16) | c2;
+    }
+
+    // Building, entry ids are positions in the key list
+    public static void Build(List<String> keys, OutputStream os) throws IOException
+    {
+        // Pairs of gram and entry id
+        Pairs pairs = new Pairs();
+        for (int id = 0; id < keys.size(); id++) {
+            String key = keys.get(id);
+            for (int i = 0; i < key.length(); i++) {
+                pairs.Add(Gram(key.charAt(i), UNIGRAM), id);
+                if (i + 1 < key.length())
+                    pairs.Add(Gram(key.charAt(i), key.charAt(i + 1)), id);
+            }
+        }
+
+        // Postings, then header and tables in front
+        Table table = new Table();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        pairs.Write(table, data);
+        table.Write(os, keys.size());
+        data.writeTo(os);
+    }
+
+    // Keys of entries for building large files, read once per pass
+    public interface KeySource
+    {
+        public int Size();
+        public int[] Keys(int id);
+    }
+
+    // Grams of a text, as used for keys of Build
+    public static int[] TextKeys(String text)
+    {
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        for (int i = 0; i < text.length(); i++) {
+            set.add(Gram(text.charAt(i), UNIGRAM));
+            if (i + 1 < text.length())
+                set.add(Gram(text.charAt(i), text.charAt(i + 1)));
+        }
+        int[] ret = new int[set.size()];
+        int i = 0;
+        for (int gram : set)
+            ret[i++] = gram;
+        return ret;
+    }
+
+    // Building in passes over key ranges of at most budget pairs each, postings go through a temporary file
+    public static void Build(KeySource source, int budget, File temp, OutputStream os) throws IOException
+    {
+        // Pairs per bucket of the upper key half, in signed key order
+        long[] count = new long[BUCKETS];
+        for (int id = 0; id < source.Size(); id++) {
+            for (int key : source.Keys(id))
+                count[Bucket(key)]++;
+        }
+
+        // Passes over ranges of buckets
+        Table table = new Table();
+        OutputStream data = new BufferedOutputStream(new FileOutputStream(temp), DataStream.BUFFER_SIZE);
+        try {
+            int bucket_s = 0;
+            while (bucket_s < BUCKETS) {
+                // Buckets up to the budget, at least one
+                int bucket_e = bucket_s + 1;
+                long pass = count[bucket_s];
+                while (bucket_e < BUCKETS && pass + count[bucket_e] <= budget)
+                    pass += count[bucket_e++];
+
+                // Pairs of the range
+                if (pass > 0) {
+                    Pairs pairs = new Pairs();
+                    for (int id = 0; id < source.Size(); id++) {
+                        for (int key : source.Keys(id)) {
+                            int bucket = Bucket(key);
+                            if (bucket >= bucket_s && bucket < bucket_e)
+                                pairs.Add(key, id);
+                        }
+                    }
+                    pairs.Write(table, data);
+                }
+                bucket_s = bucket_e;
+            }
+        } finally {
+            data.close();
+        }
+
+        // Header and tables, then postings
+        table.Write(os, source.Size());
+        InputStream is = new FileInputStream(temp);
+        try {
+            byte[] buf = new byte[DataStream.BUFFER_SIZE];
+            int len;
+            while ((len = is.read(buf)) > 0)
+                os.write(buf, 0, len);
+        } finally {
+            is.close();
+            temp.delete();
+        }
+    }
+
+    private static int Bucket(int key)
+    {
+        return (key >>> 16) ^ 0x8000;
+    }
+
+    // Pairs of key and entry id
+    private static class Pairs
+    {
+        // Key in the high and entry id in the low half
+        private long[] m_pair = new long[1024];
+        private int m_num = 0;
+
+        // Adding, entries in any order and keys may repeat
+        private void Add(int key, int id)
+        {
+            if (m_num == m_pair.length)
+                m_pair = Arrays.copyOf(m_pair, 2 * m_pair.length);
+            m_pair[m_num++] = ((long) key << 32) | (id & 0xffffffffL);
+        }
+
+        // Posting lists in key order, keys must follow those already in the table
+        private void Write(Table table, OutputStream data) throws IOException
+        {
+            // Group by key, ids ascending and distinct
+            Arrays.sort(m_pair, 0, m_num);
+            int[] posting = new int[64];
+            int i = 0;
+            while (i < m_num) {
+                int key = (int) (m_pair[i] >> 32);
+                int posting_num = 0;
+                for (; i < m_num && (int) (m_pair[i] >> 32) == key; i++) {
+                    int id = (int) m_pair[i];
+                    if (posting_num > 0 && posting[posting_num - 1] == id)
+                        continue;
+                    if (posting_num == posting.length)
+                        posting = Arrays.copyOf(posting, 2 * posting.length);
+                    posting[posting_num++] = id;
+                }
+                byte[] entry = BuildPosting(posting, posting_num);
+                table.Add(key, entry.length);
+                data.write(entry);
+            }
+        }
+    }
+
+    // Gram table and posting offsets
+    private static class Table
+    {
+        private int[] m_gram = new int[1024];
+        private int[] m_offset = new int[1025];
+        private int m_num = 0;
+
+        private void Add(int gram, int length)
+        {
+            if (m_num == m_gram.length) {
+                m_gram = Arrays.copyOf(m_gram, 2 * m_gram.length);
+                m_offset = Arrays.copyOf(m_offset, m_gram.length + 1);
+            }
+            m_gram[m_num] = gram;
+            m_offset[m_num + 1] = m_offset[m_num] + length;
+            m_num++;
+        }
+
+        private void Write(OutputStream os, int entry_num) throws IOException
+        {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER + (4 * m_num) + (4 * (m_num + 1)));
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC);
+            buf.putInt(m_num);
+            buf.putInt(entry_num);
+            for (int i = 0; i < m_num; i++)
+                buf.putInt(m_gram[i]);
+            for (int i = 0; i <= m_num; i++)
+                buf.putInt(m_offset[i]);
+            os.write(buf.array());
+        }
+    }
+
+    private static byte[] BuildPosting(int[] posting, int posting_num)
+    {
+        // Varint deltas
+        int skip_num = (posting_num + SKIP - 1) / SKIP;
+        byte[] stream = new byte[5 * posting_num];
+        int[] skip_pos = new int[skip_num];
+        int pos = 0;
+        int prev = 0;
+        for (int i = 0; i < posting_num; i++) {
+            int delta = posting[i] - prev;
+            prev = posting[i];
+            while ((delta & ~0x7f) != 0) {
+                stream[pos++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            stream[pos++] = (byte) delta;
+            if (i % SKIP == 0)
+                skip_pos[i / SKIP] = pos;
+        }
+
+        // Count, skip table and stream
+        int data = 8 + (8 * skip_num);
+        ByteBuffer buf = ByteBuffer.allocate(data + pos);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(posting_num);
+        buf.putInt(skip_num);
+        for (int k = 0; k < skip_num; k++) {
+            buf.putInt(posting[k * SKIP]);
+            buf.putInt(data + skip_pos[k]);
+        }
+        buf.put(stream, 0, pos);
+        return buf.array();
+    }
+}
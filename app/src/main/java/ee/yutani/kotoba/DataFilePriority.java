@@ -0,0 +1,86 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.content.Context;
+
+// Static ranking priority of words, one byte per word computed offline from frequency and level lists
+public class DataFilePriority
+{
+    // File header
+    public static final int MAGIC = 0x3150524b;
+    private static final int HEADER = 12;
+
+    // File
+    private DataStream m_ds = null;
+
+    // Priorities
+    private byte[] m_priority = null;
+    private int m_priority_max = 0;
+
+    // Constructor
+    public DataFilePriority(Context context, String fn) throws IOException
+    {
+        // Header
+        m_ds = new DataStream(context, fn);
+        if (m_ds.ReadInt(0) != MAGIC)
+            throw new IOException("Invalid priority file " + fn);
+        int num = m_ds.ReadInt(4);
+        m_priority_max = m_ds.ReadInt(8);
+
+        // Priorities, small enough to keep on the heap
+        m_priority = new byte[num];
+        m_ds.Read(HEADER, m_priority);
+    }
+
+    // Gets
+    public int Size() { return m_priority.length; }
+    public int Max() { return m_priority_max; }
+    public long Stamp() { return m_ds.Stamp(); }
+
+    public int Priority(int id)
+    {
+        return ((id >= 0 && id < m_priority.length) ? (m_priority[id] & 0xff) : 0);
+    }
+
+    // Building, priorities are clamped to a byte
+    public static void Build(int[] priority, OutputStream os) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + priority.length);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putInt(priority.length);
+        int max = 0;
+        for (int value : priority)
+            max = Math.max(max, Math.min(Math.max(value, 0), 255));
+        buf.putInt(max);
+        for (int value : priority)
+            buf.put((byte) Math.min(Math.max(value, 0), 255));
+        os.write(buf.array());
+    }
+}
@@ -23,12 +23,9 @@ package ee.yutani.kotoba;
 
 // Imports
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.util.Log;
 
 // Data file words
@@ -71,32 +68,24 @@ public class DataFileSentence
     {
         // Open file
         try {
-            // Raw stream
-            InputStream fs = context.getAssets().open("kotoba-sentence.kdb", AssetManager.ACCESS_RANDOM);
-            m_ds = new DataStream(fs, false);
+            // Mapped file
+            m_ds = new DataStream(context, "kotoba-sentence.kdb");
         } catch (IOException ex) {
             Log.e("DataFileSentence::DataFileSentence", "Asset opening: IO error", ex);
             return;
         }
 
-        // Inital loading
-        try {
-            // Get number of entries
-            m_entry_num = m_ds.ReadInt();
-
-            // Offsets
-            m_offset_index = 4;
-            m_offset_data = m_offset_index + (4 * (m_entry_num + 1));
+        // Get number of entries
+        m_entry_num = m_ds.ReadInt(0);
 
-        } catch (IOException ex) {
-            Log.e("DataFileSentence::DataFileSentence", "Asset reading: IO error", ex);
-            return;
-        }
+        // Offsets
+        m_offset_index = 4;
+        m_offset_data = m_offset_index + (4 * (m_entry_num + 1));
     }
 
     // Gets
     public int InfoLength() { return m_entry_num; }
-    public synchronized SentenceInfo InfoEntry(int id)
+    public SentenceInfo InfoEntry(int id)
     {
         // Checks
         assert(id >= 0 && id < m_entry_num);
@@ -104,17 +93,11 @@ public class DataFileSentence
         // Reading
         try {
             // Read offsets
-            m_ds.Seek(m_offset_index + (4 * id));
-            int[] offsets = m_ds.ReadIntArray(2);
-
-            // Read data
-            m_ds.Seek(m_offset_data + offsets[0]);
-            byte[] data = new byte[offsets[1] - offsets[0]];
-            m_ds.Read(data);
+            int offset_s = m_ds.ReadInt(m_offset_index + (4 * id));
+            int offset_e = m_ds.ReadInt(m_offset_index + (4 * (id + 1)));
 
-            // Parse data
-            ByteBuffer buf = ByteBuffer.wrap(data);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
+            // Data buffer
+            ByteBuffer buf = m_ds.Buffer(m_offset_data + offset_s, offset_e - offset_s);
 
             // Japanese
             short text_jp_len = buf.getShort();
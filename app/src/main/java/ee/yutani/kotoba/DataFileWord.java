@@ -23,32 +23,106 @@ package ee.yutani.kotoba;
 
 // Imports
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.util.Log;
 
 // Data file words
 public class DataFileWord
 {
+    // Largest gap in bytes between records that are still read together
+    private static final int MERGE_GAP = 4096;
+
+    // Text encoding
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Estimated memory use of a decoded word beyond its record bytes
+    private static final int INFO_OVERHEAD = 256;
+
+    // Words shared by search, training and dictionary views
+    public static final DataWordCache INFO_CACHE = new DataWordCache(1024 * 1024);
+
+    // Record decoding helpers, all reads use absolute positions so that records can be shared between threads
+    private static String RecordString(ByteBuffer buf, int pos)
+    {
+        short len = buf.getShort(pos);
+        byte[] arr = new byte[len];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(pos + 2);
+        dup.get(arr);
+        return new String(arr, UTF8);
+    }
+
+    private static int RecordSkip(ByteBuffer buf, int pos)
+    {
+        // Skip string list
+        short num = buf.getShort(pos);
+        pos += 2;
+        for (int i = 0; i < num; i++)
+            pos += 2 + buf.getShort(pos);
+        return pos;
+    }
+
+    private static String RecordListEntry(ByteBuffer buf, int pos, int id)
+    {
+        // Skip preceding strings
+        pos += 2;
+        for (int i = 0; i < id; i++)
+            pos += 2 + buf.getShort(pos);
+        return RecordString(buf, pos);
+    }
+
+    private static String[] RecordList(ByteBuffer buf, int pos)
+    {
+        short num = buf.getShort(pos);
+        pos += 2;
+        String[] ret = new String[num];
+        for (int i = 0; i < num; i++) {
+            ret[i] = RecordString(buf, pos);
+            pos += 2 + buf.getShort(pos);
+        }
+        return ret;
+    }
+
     // Glossary sense data structure
     public static class Sense
     {
-        // Data
-        private String[] m_gloss;
+        // Record
+        private ByteBuffer m_buf;
+        private int m_pos;
+
+        // Decoded data
+        private volatile String[] m_gloss = null;
 
         // Constructor
-        protected Sense(String[] gloss)
+        protected Sense(ByteBuffer buf, int pos)
         {
-            m_gloss = gloss;
+            m_buf = buf;
+            m_pos = pos;
         }
 
         // Gets
-        public int GlossLength() { return m_gloss.length; }
-        public String[] GlossArray() { return m_gloss; }
+        public int GlossLength() { return m_buf.getShort(m_pos); }
+        public String GlossEntry(int id)
+        {
+            String[] gloss = m_gloss;
+            if (gloss != null)
+                return gloss[id];
+            return RecordListEntry(m_buf, m_pos, id);
+        }
+        public String[] GlossArray()
+        {
+            String[] gloss = m_gloss;
+            if (gloss == null) {
+                gloss = RecordList(m_buf, m_pos);
+                m_gloss = gloss;
+            }
+            return gloss;
+        }
     }
 
     // Sentence reference data structure
@@ -73,38 +147,151 @@ public class DataFileWord
         public short End() { return m_end; }
     }
 
-    // Word class
+    // Word class, backed by the record buffer and decoded on access
     public static class WordInfo
     {
-        // Data
+        // Id
         private int m_id;
-        private String[] m_text_k;
-        private String[] m_text_r;
-        private Sense[] m_sense;
-        private int[] m_cref;
-        private Sref[] m_sref;
+
+        // Record and field offsets
+        private ByteBuffer m_buf;
+        private int m_pos_k;
+        private int m_pos_r;
+        private int m_pos_cref;
+        private int m_pos_sref;
+        private int[] m_pos_sense;
+
+        // Decoded data
+        private volatile String[] m_text_k = null;
+        private volatile String[] m_text_r = null;
+        private volatile Sense[] m_sense = null;
+        private volatile int[] m_cref = null;
+        private volatile Sref[] m_sref = null;
 
         // Constructor
-        protected WordInfo(int id, String[] text_k, String[] text_r, Sense[] sense, int[] cref, Sref[] sref)
+        protected WordInfo(int id, ByteBuffer buf)
         {
+            // Id and record
             m_id = id;
-            m_text_k = text_k;
-            m_text_r = text_r;
-            m_sense = sense;
-            m_cref = cref;
-            m_sref = sref;
+            m_buf = buf;
+
+            // Japanese (k) and (r)
+            m_pos_k = 0;
+            m_pos_r = RecordSkip(buf, m_pos_k);
+
+            // Sense
+            int pos = RecordSkip(buf, m_pos_r);
+            m_pos_sense = new int[buf.getShort(pos)];
+            pos += 2;
+            for (int i = 0; i < m_pos_sense.length; i++) {
+                m_pos_sense[i] = pos;
+                pos = RecordSkip(buf, pos);
+            }
+
+            // Cref and sref
+            m_pos_cref = pos;
+            m_pos_sref = m_pos_cref + 2 + (2 * buf.getShort(m_pos_cref));
         }
 
-        // Gets
+        // Id
         public int Id() { return m_id; }
-        public String[] TextK() { return m_text_k; }
-        public String[] TextR() { return m_text_r; }
-        public int SenseLength() { return m_sense.length; }
-        public Sense[] SenseArray() { return m_sense; }
-        public int CrefLength() { return m_cref.length; }
-        public int[] CrefArray() { return m_cref; }
-        public int SrefLength() { return m_sref.length; }
-        public Sref[] SrefArray() { return m_sref; }
+
+        // Japanese (k)
+        public int TextKLength() { return m_buf.getShort(m_pos_k); }
+        public String TextKEntry(int id)
+        {
+            String[] text = m_text_k;
+            if (text != null)
+                return text[id];
+            return RecordListEntry(m_buf, m_pos_k, id);
+        }
+        public String[] TextK()
+        {
+            String[] text = m_text_k;
+            if (text == null) {
+                text = RecordList(m_buf, m_pos_k);
+                m_text_k = text;
+            }
+            return text;
+        }
+
+        // Japanese (r)
+        public int TextRLength() { return m_buf.getShort(m_pos_r); }
+        public String TextREntry(int id)
+        {
+            String[] text = m_text_r;
+            if (text != null)
+                return text[id];
+            return RecordListEntry(m_buf, m_pos_r, id);
+        }
+        public String[] TextR()
+        {
+            String[] text = m_text_r;
+            if (text == null) {
+                text = RecordList(m_buf, m_pos_r);
+                m_text_r = text;
+            }
+            return text;
+        }
+
+        // Sense
+        public int SenseLength() { return m_pos_sense.length; }
+        public Sense SenseEntry(int id)
+        {
+            Sense[] sense = m_sense;
+            if (sense != null)
+                return sense[id];
+            return new Sense(m_buf, m_pos_sense[id]);
+        }
+        public Sense[] SenseArray()
+        {
+            Sense[] sense = m_sense;
+            if (sense == null) {
+                sense = new Sense[m_pos_sense.length];
+                for (int i = 0; i < sense.length; i++)
+                    sense[i] = new Sense(m_buf, m_pos_sense[i]);
+                m_sense = sense;
+            }
+            return sense;
+        }
+
+        // Cref
+        public int CrefLength() { return m_buf.getShort(m_pos_cref); }
+        public int[] CrefArray()
+        {
+            int[] cref = m_cref;
+            if (cref == null) {
+                cref = new int[CrefLength()];
+                for (int i = 0; i < cref.length; i++)
+                    cref[i] = m_buf.getShort(m_pos_cref + 2 + (2 * i));
+                m_cref = cref;
+            }
+            return cref;
+        }
+
+        // Sref
+        public int SrefLength() { return m_buf.getShort(m_pos_sref); }
+        public Sref SrefEntry(int id)
+        {
+            Sref[] sref = m_sref;
+            if (sref != null)
+                return sref[id];
+            int pos = m_pos_sref + 2 + (8 * id);
+            return new Sref(m_buf.getInt(pos), m_buf.getShort(pos + 4), m_buf.getShort(pos + 6));
+        }
+        public Sref[] SrefArray()
+        {
+            Sref[] sref = m_sref;
+            if (sref == null) {
+                sref = new Sref[SrefLength()];
+                for (int i = 0; i < sref.length; i++) {
+                    int pos = m_pos_sref + 2 + (8 * i);
+                    sref[i] = new Sref(m_buf.getInt(pos), m_buf.getShort(pos + 4), m_buf.getShort(pos + 6));
+                }
+                m_sref = sref;
+            }
+            return sref;
+        }
     }
 
     // File
@@ -126,144 +313,118 @@ public class DataFileWord
     {
         // Open file
         try {
-            // Raw stream
-            InputStream fs = context.getAssets().open("kotoba-word.kdb", AssetManager.ACCESS_RANDOM);
-            m_ds = new DataStream(fs, false);
+            // Mapped file
+            m_ds = new DataStream(context, "kotoba-word.kdb");
         } catch (IOException ex) {
             Log.e("DataFileWord::DataFileWord", "Asset opening: IO error", ex);
             return;
         }
 
-        // Inital loading
-        try {
-            // Get number of entries
-            m_entry_num = m_ds.ReadInt();
-
-            // Offsets
-            m_offset_index = 4;
-            m_offset_data = m_offset_index + (4 * (m_entry_num + 1));
+        // Get number of entries
+        m_entry_num = m_ds.ReadInt(0);
 
-            // Read index
-            m_index = new int[m_entry_num + 1];
-            for (int i = 0; i < m_index.length; i++)
-                m_index[i] = m_ds.ReadInt();
+        // Offsets
+        m_offset_index = 4;
+        m_offset_data = m_offset_index + (4 * (m_entry_num + 1));
 
-            // Ident offset
-            m_offset_ident = m_offset_data + m_index[m_entry_num];
+        // Read index
+        m_index = m_ds.ReadIntArray(m_offset_index, m_entry_num + 1);
 
-        } catch (IOException ex) {
-            Log.e("DataFileWord::DataFileWord", "Asset reading: IO error", ex);
-            return;
-        }
+        // Ident offset
+        m_offset_ident = m_offset_data + m_index[m_entry_num];
     }
 
     // Info
     public int InfoLength() { return m_entry_num; }
-    public synchronized WordInfo InfoEntry(int id)
+    public WordInfo InfoEntry(int id)
     {
         // Checks
         assert(id >= 0 && id < m_entry_num);
 
-        // Reading
-        try {
-            // Read data
-            m_ds.Seek(m_offset_data + m_index[id]);
-            byte[] data = new byte[m_index[id + 1] - m_index[id]];
-            m_ds.Read(data);
-
-            // Parse data
-            ByteBuffer buf = ByteBuffer.wrap(data);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
+        // Cached word
+        WordInfo info = INFO_CACHE.Get(id, m_ds.Stamp());
+        if (info != null)
+            return info;
 
-            // Japanese (k)
-            short text_k_len = buf.getShort();
-            String[] text_k = new String[text_k_len];
-            for (int i = 0; i < text_k_len; i++) {
-                short len = buf.getShort();
-                byte[] str = new byte[len];
-                buf.get(str);
-                text_k[i] = new String(str, "UTF-8");
-            }
+        // Data buffer
+        long trace = DataTrace.Begin();
+        ByteBuffer buf = m_ds.Buffer(m_offset_data + m_index[id], m_index[id + 1] - m_index[id]);
 
-            // Japanese (r)
-            short text_r_len = buf.getShort();
-            String[] text_r = new String[text_r_len];
-            for (int i = 0; i < text_r_len; i++) {
-                short len = buf.getShort();
-                byte[] str = new byte[len];
-                buf.get(str);
-                text_r[i] = new String(str, "UTF-8");
-            }
-
-            // Sense
-            short sense_len = buf.getShort();
-            Sense[] sense = new Sense[sense_len];
-            for (int i = 0; i < sense_len; i++) {
-                // Gloss
-                short gloss_len = buf.getShort();
-                String[] gloss = new String[gloss_len];
-                for (int j = 0; j < gloss_len; j++) {
-                    short len = buf.getShort();
-                    byte[] str = new byte[len];
-                    buf.get(str);
-                    gloss[j] = new String(str, "UTF-8");
-                }
+        // Word
+        info = InfoCache(id, buf);
+        DataTrace.End("DataFileWord::InfoEntry", trace);
+        return info;
+    }
 
-                // Entry
-                sense[i] = new Sense(gloss);
-            }
+    public WordInfo[] InfoEntries(int[] id)
+    {
+        // Cached words are taken directly, others are sorted by id and therefore by file offset, keeping the original position in low bits
+        long trace = DataTrace.Begin();
+        WordInfo[] ret = new WordInfo[id.length];
+        long[] order = new long[id.length];
+        int order_num = 0;
+        for (int i = 0; i < id.length; i++) {
+            assert(id[i] >= 0 && id[i] < m_entry_num);
+            ret[i] = INFO_CACHE.Get(id[i], m_ds.Stamp());
+            if (ret[i] == null)
+                order[order_num++] = ((long) id[i] << 32) | i;
+        }
+        Arrays.sort(order, 0, order_num);
 
-            // Cref
-            short cref_len = buf.getShort();
-            int[] cref = new int[cref_len];
-            for (int i = 0; i < cref_len; i++) {
-                cref[i] = buf.getShort();
+        // Reading
+        int i = 0;
+        while (i < order_num) {
+            // Coalesce following records while the gap between them is small
+            int id_first = (int) (order[i] >> 32);
+            int id_last = id_first;
+            int j = i + 1;
+            while (j < order_num) {
+                int id_next = (int) (order[j] >> 32);
+                if (m_index[id_next] - m_index[id_last + 1] > MERGE_GAP)
+                    break;
+                id_last = id_next;
+                j++;
             }
 
-            // Sref
-            short sref_len = buf.getShort();
-            Sref[] sref = new Sref[sref_len];
-            for (int i = 0; i < sref_len; i++) {
-                // Data
-                int sref_id = buf.getInt();
-                short sref_s = buf.getShort();
-                short sref_e = buf.getShort();
-
-                // Entry
-                sref[i] = new Sref(sref_id, sref_s, sref_e);
+            // Single read for the whole range
+            int range_s = m_index[id_first];
+            ByteBuffer range = m_ds.Buffer(m_offset_data + range_s, m_index[id_last + 1] - range_s);
+
+            // Records as slices of the range
+            for (; i < j; i++) {
+                int entry = (int) (order[i] >> 32);
+                ByteBuffer buf = range.duplicate();
+                buf.position(m_index[entry] - range_s);
+                buf.limit(m_index[entry + 1] - range_s);
+                buf = buf.slice();
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                ret[(int) order[i]] = InfoCache(entry, buf);
             }
-
-            // Word
-            return new WordInfo(id, text_k, text_r, sense, cref, sref);
-
-        } catch (IOException ex) {
-            Log.e("DataFileWord::InfoEntry", "IO error", ex);
-            return null;
         }
+        DataTrace.End("DataFileWord::InfoEntries", trace);
+        return ret;
     }
 
-    // Ident
-    public int IdentLength() { return m_entry_num; }
-    public synchronized int[] IdentArray()
+    private WordInfo InfoCache(int id, ByteBuffer buf)
     {
-        try {
-            // Read
-            m_ds.Seek(m_offset_ident);
-            byte[] arr = new byte[m_entry_num * 4];
-            m_ds.Read(arr);
-
-            // Parse data
-            ByteBuffer buf = ByteBuffer.wrap(arr);
+        // Records inside larger heap arrays are copied so that cached words do not hold whole blocks or ranges
+        if (buf.hasArray() && buf.array().length > buf.remaining()) {
+            byte[] arr = new byte[buf.remaining()];
+            buf.duplicate().get(arr);
+            buf = ByteBuffer.wrap(arr);
             buf.order(ByteOrder.LITTLE_ENDIAN);
+        }
 
-            // Get ints
-            int[] dst = new int[m_entry_num];
-            buf.asIntBuffer().get(dst);
-            return dst;
+        // Word
+        WordInfo info = new WordInfo(id, buf);
+        INFO_CACHE.Put(id, m_ds.Stamp(), info, buf.remaining() + INFO_OVERHEAD);
+        return info;
+    }
 
-        } catch (IOException ex) {
-            Log.e("DataFileWord::IdentArray", "IO error", ex);
-            return null;
-        }
+    // Ident
+    public int IdentLength() { return m_entry_num; }
+    public int[] IdentArray()
+    {
+        return m_ds.ReadIntArray(m_offset_ident, m_entry_num);
     }
 }
@@ -22,8 +22,18 @@
 package ee.yutani.kotoba;
 
 // Imports
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 // Main database class
 public class DataMain extends AsyncTask<Void, String, Void>
@@ -32,9 +42,14 @@ public class DataMain extends AsyncTask<Void, String, Void>
     public interface Callback
     {
         public void DatabaseLoadingProgress(String text);
+        public void DatabaseSearchReady();
+        public void DatabaseSentenceSearchReady();
         public void DatabaseLoadingFinished();
     }
 
+    // Loading threads
+    private static final int LOAD_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     // Context and database
     private Context m_context;
     private Callback m_callback;
@@ -47,6 +62,7 @@ public class DataMain extends AsyncTask<Void, String, Void>
     private DataFileBase m_file_base_e = null;
     private DataFileBase m_file_base_f = null;
     private DataFileBase m_file_base_k = null;
+    private DataFilePriority m_file_priority = null;
 
     // User
     private DataUserWord m_user_word = null;
@@ -56,6 +72,77 @@ public class DataMain extends AsyncTask<Void, String, Void>
 
     // Search
     private DataSearch m_search = null;
+    private volatile DataSearchSentence m_search_sentence = null;
+
+    // Loading steps
+    private ArrayList<LoadTask> m_task = new ArrayList<LoadTask>();
+    private ExecutorService m_executor = null;
+    private CountDownLatch m_latch = null;
+    private volatile RuntimeException m_error = null;
+
+    // Main thread
+    private Handler m_handler = new Handler(Looper.getMainLooper());
+
+    // Loading step, runs once the steps it depends on have finished
+    private abstract class LoadTask implements Runnable
+    {
+        // Name in timing traces, and progress text when started, 0 for none
+        private String m_name;
+        private int m_progress;
+
+        // Left out of loading, finishes on its own and a failure only disables what it loads
+        private boolean m_background;
+
+        // Dependencies still running, and steps waiting for this one
+        private AtomicInteger m_pending;
+        private ArrayList<LoadTask> m_dependent = new ArrayList<LoadTask>();
+
+        // Constructor
+        private LoadTask(String name, int progress, LoadTask... depend)
+        {
+            this(name, progress, false, depend);
+        }
+
+        private LoadTask(String name, int progress, boolean background, LoadTask... depend)
+        {
+            m_name = "DataMain::" + name;
+            m_progress = progress;
+            m_background = background;
+            m_pending = new AtomicInteger(depend.length);
+            for (LoadTask task : depend)
+                task.m_dependent.add(this);
+            m_task.add(this);
+        }
+
+        // Loading
+        protected abstract void Load();
+
+        @Override public void run()
+        {
+            try {
+                // Steps after a failure are skipped
+                if (m_error == null) {
+                    if (m_progress != 0)
+                        publishProgress(m_context.getString(m_progress));
+                    long trace = DataTrace.Begin();
+                    Load();
+                    DataTrace.End(m_name, trace);
+                }
+            } catch (RuntimeException ex) {
+                Log.e("DataMain::LoadTask", "Loading error", ex);
+                if (!m_background)
+                    m_error = ex;
+            } finally {
+                // Start steps with all inputs ready, before the latch lets the executor shut down
+                for (LoadTask task : m_dependent) {
+                    if (task.m_pending.decrementAndGet() == 0)
+                        m_executor.execute(task);
+                }
+                if (!m_background)
+                    m_latch.countDown();
+            }
+        }
+    }
 
     // Constructor
     public DataMain(Context context, Callback callback)
@@ -71,39 +158,132 @@ public class DataMain extends AsyncTask<Void, String, Void>
     public DataFileBase FileBaseF() { return m_file_base_f; }
     public DataFileBase FileBaseK() { return m_file_base_k; }
 
+    // User
+    public DataUserWord UserWord() { return m_user_word; }
+
     // Train
     public DataTrainWord TrainWord() { return m_train_word; }
 
     // Search
     public DataSearch Search() { return m_search; }
+    public DataSearchSentence SearchSentence() { return m_search_sentence; }
 
     // Loading
     @Override protected Void doInBackground(Void... params)
     {
         // Database
-        this.publishProgress(m_context.getString(R.string.db_loading_database));
-        m_database = new DataDatabase(m_context);
-        m_database.Open();
-
-        // Files
-        this.publishProgress(m_context.getString(R.string.db_loading_files));
-        m_file_category = new DataFileCategory(m_context);
-        m_file_word = new DataFileWord(m_context);
-        m_file_sentence = new DataFileSentence(m_context);
-        m_file_base_e = new DataFileBase(m_context, "e");
-        m_file_base_f = new DataFileBase(m_context, "f");
-        m_file_base_k = new DataFileBase(m_context, "k");
+        final LoadTask database = new LoadTask("Database", R.string.db_loading_database) {
+            @Override protected void Load()
+            {
+                m_database = new DataDatabase(m_context);
+                m_database.Open();
+            }
+        };
+
+        // Files, independent of each other and of the database
+        final LoadTask file_category = new LoadTask("Category", R.string.db_loading_files) {
+            @Override protected void Load() { m_file_category = new DataFileCategory(m_context); }
+        };
+        final LoadTask file_word = new LoadTask("Word", 0) {
+            @Override protected void Load() { m_file_word = new DataFileWord(m_context); }
+        };
+        final LoadTask file_sentence = new LoadTask("Sentence", 0) {
+            @Override protected void Load() { m_file_sentence = new DataFileSentence(m_context); }
+        };
+        final LoadTask file_base_e = new LoadTask("BaseE", 0) {
+            @Override protected void Load() { m_file_base_e = new DataFileBase(m_context, "e"); }
+        };
+        final LoadTask file_base_f = new LoadTask("BaseF", 0) {
+            @Override protected void Load() { m_file_base_f = new DataFileBase(m_context, "f"); }
+        };
+        final LoadTask file_base_k = new LoadTask("BaseK", 0) {
+            @Override protected void Load() { m_file_base_k = new DataFileBase(m_context, "k"); }
+        };
+
+        // Priorities, ranking falls back to match quality when missing
+        final LoadTask file_priority = new LoadTask("Priority", 0, file_word) {
+            @Override protected void Load()
+            {
+                try {
+                    m_file_priority = new DataFilePriority(m_context, "kotoba-priority.kdb");
+                } catch (IOException ex) {
+                    m_file_priority = null;
+                }
+                if (m_file_priority != null && m_file_priority.Size() != m_file_word.InfoLength()) {
+                    Log.w("DataMain::doInBackground", "Priority file does not match word file");
+                    m_file_priority = null;
+                }
+            }
+        };
 
         // User
-        this.publishProgress(m_context.getString(R.string.db_loading_user));
-        m_user_word = new DataUserWord(m_context, m_file_word, m_database.Database(), m_database.VersionDb(), m_database.VersionSys());
+        final LoadTask user_word = new LoadTask("UserWord", R.string.db_loading_user, database, file_word) {
+            @Override protected void Load()
+            {
+                m_user_word = new DataUserWord(m_context, m_file_word, m_database.Database(), m_database.VersionDb(), m_database.VersionSys());
+            }
+        };
 
         // Train
-        this.publishProgress(m_context.getString(R.string.db_loading_train));
-        m_train_word = new DataTrainWord(m_file_word, m_file_category, m_user_word);
+        new LoadTask("Train", R.string.db_loading_train, file_word, file_category, user_word) {
+            @Override protected void Load() { m_train_word = new DataTrainWord(m_file_word, m_file_category, m_user_word); }
+        };
+
+        // Search, usable before training has loaded
+        new LoadTask("Search", 0, file_base_e, file_base_f, file_base_k, file_word, file_priority) {
+            @Override protected void Load()
+            {
+                m_search = new DataSearch(m_file_base_e, m_file_base_f, m_file_base_k, m_file_word, m_file_priority);
+                m_handler.post(new Runnable() {
+                    @Override public void run()
+                    {
+                        m_callback.DatabaseSearchReady();
+                    }
+                });
+            }
+        };
+
+        // Sentence search, indexes are built on first launch when not shipped so loading finishes without it
+        new LoadTask("SearchSentence", 0, true, file_sentence) {
+            @Override protected void Load()
+            {
+                m_search_sentence = new DataSearchSentence(m_context, m_file_sentence);
+                m_handler.post(new Runnable() {
+                    @Override public void run()
+                    {
+                        m_callback.DatabaseSentenceSearchReady();
+                    }
+                });
+            }
+        };
+
+        // Run tasks without dependencies, the others follow as their inputs finish
+        long trace = DataTrace.Begin();
+        m_executor = Executors.newFixedThreadPool(LOAD_THREADS);
+        int latched = 0;
+        for (LoadTask task : m_task) {
+            if (!task.m_background)
+                latched++;
+        }
+        m_latch = new CountDownLatch(latched);
+        for (LoadTask task : m_task) {
+            if (task.m_pending.get() == 0)
+                m_executor.execute(task);
+        }
+        try {
+            m_latch.await();
+        } catch (InterruptedException ex) {
+            Log.w("DataMain::doInBackground", "Interrupted", ex);
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            m_executor.shutdown();
+            DataTrace.End("DataMain::Load", trace);
+        }
 
-        // Search
-        m_search = new DataSearch(m_file_base_e, m_file_base_f, m_file_base_k, m_file_word);
+        // Failed step
+        if (m_error != null)
+            throw m_error;
 
         // Successfully opened
         m_database.Success();
@@ -23,19 +23,53 @@ package ee.yutani.kotoba;
 
 // Imports
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import ee.yutani.kotoba.DataFileBase.BaseInfo;
 import ee.yutani.kotoba.DataFileWord.WordInfo;
+import android.util.Log;
 
 // Word searching class
 public class DataSearch
 {
     // Constants
     private static final int NUM_MATCHES = 30;
+    private static final int NUM_RESULTS = 200;
+
+    // Fuzzy matching, distance 1 from FUZZY_LENGTH_1 and 2 from FUZZY_LENGTH_2 characters
+    private static final int FUZZY_LENGTH_1 = 4;
+    private static final int FUZZY_LENGTH_2 = 8;
+    private static final int FUZZY_PENALTY = 100;
+
+    // English tokens
+    private static final Pattern LATIN = Pattern.compile("\\p{IsLatin}+");
+
+    // Static priority, scores are multiplied by the base plus the word priority
+    private static final int PRIORITY_BASE = 64;
+
+    // Base lookups of all query tokens run together
+    private static final int LOOKUP_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService LOOKUP_EXECUTOR = Executors.newFixedThreadPool(LOOKUP_THREADS, new ThreadFactory() {
+        // Shared for the life of the process, never keeps it from exiting
+        @Override public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, "DataSearch lookup");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Ranked results of recent queries, shared by all searches
+    private static final DataSearchCache RESULT_CACHE = new DataSearchCache(512 * 1024);
 
     public class SearchWord implements Comparable<SearchWord>
     {
@@ -44,67 +78,33 @@ public class DataSearch
         private long m_weight;
         private int m_level;
 
+        // Word info
+        private volatile WordInfo m_info = null;
+
         // Constructor
-        public SearchWord(int id, long weight, float match, int rank)
+        private SearchWord(int id, long weight, int level)
         {
-            // Id
             m_id = id;
-
-            // Weight
-            m_weight = 100; //weight;
-            if (match == 1.0f) {
-                m_weight *= 1000 * 1000;
-            } else if (match > 1.0f) {
-                m_weight *= 1000.0 / match;
-            } else {
-                m_weight *= match;
-            }
-
-            // Rank
-            rank++;
-            if (rank < 1)
-                rank = 1;
-            m_weight /= rank;
-
-            // Level
-            m_level = 0;
+            m_weight = weight;
+            m_level = level;
         }
 
-        // Append
-        public void Append(long weight, float match, int rank)
+        // Gets
+        public int Id()
         {
-            // Weight
-            if (match == 1.0f) {
-                weight *= 1000 * 1000;
-            } else if (match > 1.0f) {
-                weight *= 1000.0 / match;
-            } else {
-                weight *= match;
-            }
-
-            // Rank
-            rank++;
-            if (rank < 1)
-                rank = 1;
-            weight /= rank;
-
-            // Add modified weight
-            m_weight += weight;
-
-            // Level
-            m_level++;
+            return m_id;
         }
 
-        // Rescale
-        public void Rescale(long weight, float match, int rank)
+        public boolean Loaded()
         {
-
+            return (m_info != null);
         }
 
-        // Gets
         public WordInfo Word()
         {
-            return m_word.InfoEntry(m_id);
+            if (m_info == null)
+                m_info = m_word.InfoEntry(m_id);
+            return m_info;
         }
 
         // Comparison
@@ -122,6 +122,156 @@ public class DataSearch
         }
     }
 
+    // Lookup of one token in one base
+    private class SearchLookup implements Callable<ArrayList<BaseInfo>>
+    {
+        // Kinds
+        private static final int FIND = 0;
+        private static final int FUZZY = 1;
+        private static final int INFIX = 2;
+
+        // Data
+        private int m_kind;
+        private DataFileBase m_base;
+        private String m_query;
+        private int m_num;
+        private int[] m_range;
+        private int m_distance;
+
+        // Position of the next page
+        private int[] m_pos = new int[]{ 0 };
+
+        // Search
+        private SearchSession m_session;
+        private int m_generation;
+
+        // Constructor
+        public SearchLookup(int kind, DataFileBase base, String query, int num, int[] range, int distance, SearchSession session, int generation)
+        {
+            m_kind = kind;
+            m_base = base;
+            m_query = query;
+            m_num = num;
+            m_range = range;
+            m_distance = distance;
+            m_session = session;
+            m_generation = generation;
+        }
+
+        // Highest score of any word found, for early termination
+        public long Bound()
+        {
+            switch (m_kind) {
+                case FUZZY:
+                    // Exact and prefix keys are left to Find, typos are at least one edit away
+                    return ScoreBound(1.0f, 1);
+                case INFIX:
+                    // Text starts past the start of the key, so the key is at least one character longer
+                    return ScoreBound((float)m_query.length() / (float)(m_query.length() + 1), 0);
+                default:
+                    return ScoreBound(1.0f, 0);
+            }
+        }
+
+        // Lookup, null for a stale query
+        @Override public ArrayList<BaseInfo> call()
+        {
+            if (m_session != null && m_session.Cancelled(m_generation))
+                return null;
+            switch (m_kind) {
+                case FUZZY:
+                    return m_base.FindFuzzy(m_query, m_distance, m_num, m_pos);
+                case INFIX:
+                    return m_base.FindInfix(m_query, m_num, m_pos);
+                default:
+                    return m_base.Find(m_query, m_num, m_range, m_pos);
+            }
+        }
+    }
+
+    // Tokens of a query and their ranges in the e, f and k bases, never changed once handed to a session
+    private static class SearchRanges
+    {
+        // Data
+        private final ArrayList<String> m_token;
+        private final ArrayList<int[][]> m_range;
+
+        // Constructor
+        private SearchRanges(ArrayList<String> token, ArrayList<int[][]> range)
+        {
+            m_token = token;
+            m_range = range;
+        }
+    }
+
+    // Incremental search, remembers equal ranges of the previous query and drops stale searches
+    public class SearchSession
+    {
+        // Generation of the newest query
+        private AtomicInteger m_generation = new AtomicInteger(0);
+
+        // Previous tokens and ranges, replaced as a whole so that searches on other threads see matching pairs
+        private volatile SearchRanges m_last = new SearchRanges(new ArrayList<String>(), new ArrayList<int[][]>());
+
+        // Generation
+        public int Next()
+        {
+            return m_generation.incrementAndGet();
+        }
+
+        public boolean Cancelled(int generation)
+        {
+            return (generation != m_generation.get());
+        }
+
+        // Search, null when a newer query has arrived
+        public ArrayList<SearchWord> Search(String query, int generation)
+        {
+            // Cached, next query starts from the full ranges
+            String key = CacheKey(query);
+            DataSearchCache.Result cached = RESULT_CACHE.Get(key, m_stamp);
+            if (cached != null) {
+                m_last = new SearchRanges(new ArrayList<String>(), new ArrayList<int[][]>());
+                return CacheList(cached);
+            }
+
+            // Scores
+            DataSearchScore score = new DataSearchScore(NUM_RESULTS);
+
+            // Split query
+            SearchRanges last = m_last;
+            ArrayList<String> token = new ArrayList<String>();
+            ArrayList<int[][]> range = new ArrayList<int[][]>();
+            for (String entry : query.trim().split("\\s+")) {
+                if (entry.length() == 0)
+                    continue;
+
+                // Narrow from the previous token when it is a prefix
+                int i = token.size();
+                int[][] entry_range = new int[][]{ { -1, -1 }, { -1, -1 }, { -1, -1 } };
+                if (i < last.m_token.size() && entry.startsWith(last.m_token.get(i))) {
+                    for (int j = 0; j < entry_range.length; j++)
+                        entry_range[j] = last.m_range.get(i)[j].clone();
+                }
+                token.add(entry);
+                range.add(entry_range);
+            }
+
+            // Search
+            boolean complete = SearchTokens(score, token, range, this, generation);
+            if (Cancelled(generation))
+                return null;
+
+            // Ranges for the next query and cache, not from the partial results of a failed lookup
+            ArrayList<SearchWord> list = ScoreList(score, NUM_RESULTS);
+            if (complete) {
+                m_last = new SearchRanges(token, range);
+                RESULT_CACHE.Put(key, m_stamp, CacheResult(list));
+            }
+            return list;
+        }
+    }
+
     // Bases
     private DataFileBase m_base_e = null;
     private DataFileBase m_base_f = null;
@@ -130,8 +280,18 @@ public class DataSearch
     // Words
     private DataFileWord m_word = null;
 
+    // Static priority of words, uniform when missing
+    private DataFilePriority m_priority = null;
+
+    // Stamp of the base files for cached results
+    private long m_stamp = 0;
+
+    // Settings
+    private volatile boolean m_fuzzy = true;
+    private volatile boolean m_parallel = (LOOKUP_THREADS > 1);
+
     // Constructor
-    public DataSearch(DataFileBase base_e, DataFileBase base_f, DataFileBase base_k, DataFileWord word)
+    public DataSearch(DataFileBase base_e, DataFileBase base_f, DataFileBase base_k, DataFileWord word, DataFilePriority priority)
     {
         // Bases
         m_base_e = base_e;
@@ -140,69 +300,433 @@ public class DataSearch
 
         // Words
         m_word = word;
+        m_priority = priority;
+
+        // Stamp
+        m_stamp = (((base_e.Stamp() * 31) + base_f.Stamp()) * 31) + base_k.Stamp();
+        if (priority != null)
+            m_stamp = (m_stamp * 31) + priority.Stamp();
+    }
+
+    // Settings
+    public void SetFuzzy(boolean fuzzy)
+    {
+        m_fuzzy = fuzzy;
+    }
+
+    public void SetParallel(boolean parallel)
+    {
+        m_parallel = parallel;
     }
 
     // Search
+    public SearchSession Session()
+    {
+        return new SearchSession();
+    }
+
     public ArrayList<SearchWord> Search(String query)
     {
-        // Result map
-        TreeMap<Integer, SearchWord> map = new TreeMap<Integer, SearchWord>();
+        // Cached
+        String key = CacheKey(query);
+        DataSearchCache.Result cached = RESULT_CACHE.Get(key, m_stamp);
+        if (cached != null)
+            return CacheList(cached);
+
+        // Scores
+        DataSearchScore score = new DataSearchScore(NUM_RESULTS);
 
         // Split query
-        String[] split = query.split("\\s+");
-        for (String entry : split)
-            SearchEntry(map, entry);
+        ArrayList<String> token = Tokens(query);
+        boolean complete = SearchTokens(score, token, null, null, 0);
 
-        ArrayList<SearchWord> list = new ArrayList<SearchWord>(map.values());
-        Collections.sort(list);
+        // Partial results of a failed lookup are not cached
+        ArrayList<SearchWord> list = ScoreList(score, NUM_RESULTS);
+        if (complete)
+            RESULT_CACHE.Put(key, m_stamp, CacheResult(list));
         return list;
     }
 
+    // Paged results, further pages continue the lookups deeper into the bases
+    public SearchCursor Cursor(String query, List<SearchWord> shown)
+    {
+        return new SearchCursor(query, shown);
+    }
+
+    public class SearchCursor
+    {
+        // Query
+        private ArrayList<String> m_token;
+        private boolean m_end = false;
+
+        // Lookups of each token, each continues where its previous page stopped
+        private ArrayList<ArrayList<SearchLookup>> m_lookup = null;
+        private boolean m_more = true;
+
+        // Scores of all pages so far, words count once per token
+        private DataSearchScore m_score = new DataSearchScore(0);
+
+        // Words returned by the search, left out once the first page is known again
+        private int[] m_shown;
+
+        // Constructor
+        private SearchCursor(String query, List<SearchWord> shown)
+        {
+            m_token = Tokens(query);
+            m_shown = new int[shown.size()];
+            for (int i = 0; i < m_shown.length; i++)
+                m_shown[i] = shown.get(i).m_id;
+            m_end = (m_token.size() == 0);
+        }
+
+        // State
+        public synchronized boolean End()
+        {
+            return m_end;
+        }
+
+        // Next page, best words not returned so far
+        public synchronized ArrayList<SearchWord> Next()
+        {
+            if (m_end)
+                return new ArrayList<SearchWord>();
+
+            // First page again, once, for the lookup positions and the scores of words found with the shown ones
+            if (m_lookup == null) {
+                m_lookup = new ArrayList<ArrayList<SearchLookup>>();
+                for (String entry : m_token)
+                    m_lookup.add(SearchEntry(entry, NUM_MATCHES, null, null, 0));
+                m_more = Page();
+                for (int id : m_shown)
+                    m_score.Take(id);
+                m_shown = null;
+            }
+
+            // Next page of the lookups, more until new words turn up
+            int[] top;
+            do {
+                if (m_more)
+                    m_more = Page();
+                top = m_score.Next(NUM_RESULTS);
+            } while (top.length == 0 && m_more);
+            m_end = (top.length == 0);
+
+            ArrayList<SearchWord> ret = new ArrayList<SearchWord>(top.length);
+            for (int slot : top)
+                ret.add(new SearchWord(m_score.Id(slot), m_score.Weight(slot), m_score.Level(slot)));
+            return ret;
+        }
+
+        // One page of every lookup not done yet, false once all are done
+        private boolean Page()
+        {
+            boolean more = false;
+            for (int i = 0; i < m_lookup.size(); i++) {
+                // Words seen by other tokens or pages are added to, each token counts once over all pages
+                m_score.Token(i + 1);
+                for (SearchLookup item : m_lookup.get(i)) {
+                    if (item.m_pos[0] < 0)
+                        continue;
+                    ArrayList<BaseInfo> list = item.call();
+                    if (list != null) {
+                        for (BaseInfo info : list)
+                            SearchInsert(m_score, info);
+                    }
+                    more |= (item.m_pos[0] >= 0);
+                }
+            }
+            return more;
+        }
+    }
+
+    private ArrayList<String> Tokens(String query)
+    {
+        ArrayList<String> token = new ArrayList<String>();
+        for (String entry : query.trim().split("\\s+")) {
+            if (entry.length() > 0)
+                token.add(entry);
+        }
+        return token;
+    }
+
+    // Result cache
+    public void CacheClear()
+    {
+        RESULT_CACHE.Clear();
+    }
+
+    public long CacheHits()
+    {
+        return RESULT_CACHE.Hits();
+    }
+
+    public long CacheMisses()
+    {
+        return RESULT_CACHE.Misses();
+    }
+
+    // Result cache
+    private String CacheKey(String query)
+    {
+        // Settings that change results, then the normalized tokens
+        StringBuilder key = new StringBuilder(m_fuzzy ? "1" : "0");
+        for (String entry : query.trim().split("\\s+")) {
+            if (entry.length() == 0)
+                continue;
+            if (LATIN.matcher(entry).matches())
+                entry = entry.toLowerCase(Locale.ENGLISH);
+            key.append(' ').append(entry);
+        }
+        return key.toString();
+    }
+
+    private DataSearchCache.Result CacheResult(ArrayList<SearchWord> list)
+    {
+        int[] id = new int[list.size()];
+        long[] weight = new long[list.size()];
+        int[] level = new int[list.size()];
+        for (int i = 0; i < id.length; i++) {
+            SearchWord word = list.get(i);
+            id[i] = word.m_id;
+            weight[i] = word.m_weight;
+            level[i] = word.m_level;
+        }
+        return new DataSearchCache.Result(id, weight, level);
+    }
+
+    private ArrayList<SearchWord> CacheList(DataSearchCache.Result result)
+    {
+        ArrayList<SearchWord> list = new ArrayList<SearchWord>(result.Size());
+        for (int i = 0; i < result.Size(); i++)
+            list.add(new SearchWord(result.Id(i), result.Weight(i), result.Level(i)));
+        return list;
+    }
+
+    // Word info reading for a number of results at once
+    public void Prefetch(List<SearchWord> list)
+    {
+        // Words not yet read
+        ArrayList<SearchWord> load = new ArrayList<SearchWord>();
+        for (SearchWord word : list) {
+            if (!word.Loaded())
+                load.add(word);
+        }
+        if (load.size() == 0)
+            return;
+
+        // Batch read
+        int[] id = new int[load.size()];
+        for (int i = 0; i < id.length; i++)
+            id[i] = load.get(i).m_id;
+        WordInfo[] info = m_word.InfoEntries(id);
+        if (info == null)
+            return;
+        for (int i = 0; i < id.length; i++)
+            load.get(i).m_info = info[i];
+    }
+
     // Search
-    private void SearchEntry(TreeMap<Integer, SearchWord> map, String query)
+    private ArrayList<SearchLookup> SearchEntry(String query, int num, int[][] range, SearchSession session, int generation)
     {
-        // Temporary set
-        TreeSet<Integer> map_check = new TreeSet<Integer>();
+        // Ranges of a previous prefix in the e, f and k bases
+        if (range == null)
+            range = new int[][]{ null, null, null };
+
+        // Lookups in merge order
+        ArrayList<SearchLookup> lookup = new ArrayList<SearchLookup>();
 
         // Latin check
-        boolean is_latin = query.matches("\\p{Latin}+");
+        boolean is_latin = LATIN.matcher(query).matches();
         if (is_latin) {
             // English
             query = query.toLowerCase(Locale.ENGLISH);
-            ArrayList<BaseInfo> elist = m_base_e.Find(query, NUM_MATCHES);
-            for (BaseInfo info : elist)
-                SearchInsert(map, map_check, info);
+            lookup.add(new SearchLookup(SearchLookup.FIND, m_base_e, query, num, range[0], 0, session, generation));
+
+            // Typos, after prefix matches so that those keep their weight
+            int distance = ((query.length() >= FUZZY_LENGTH_2) ? 2 : ((query.length() >= FUZZY_LENGTH_1) ? 1 : 0));
+            if (m_fuzzy && distance > 0)
+                lookup.add(new SearchLookup(SearchLookup.FUZZY, m_base_e, query, num, null, distance, session, generation));
         } else {
             // Japanese
-            ArrayList<BaseInfo> flist = m_base_f.Find(query, NUM_MATCHES);
-            for (BaseInfo info : flist)
-                SearchInsert(map, map_check, info);
-            ArrayList<BaseInfo> klist = m_base_k.Find(query, NUM_MATCHES);
-            for (BaseInfo info : klist)
-                SearchInsert(map, map_check, info);
+            lookup.add(new SearchLookup(SearchLookup.FIND, m_base_f, query, num, range[1], 0, session, generation));
+            lookup.add(new SearchLookup(SearchLookup.FIND, m_base_k, query, num, range[2], 0, session, generation));
+
+            // Infix, after prefix matches so that those keep their weight
+            lookup.add(new SearchLookup(SearchLookup.INFIX, m_base_f, query, num, null, 0, session, generation));
+            lookup.add(new SearchLookup(SearchLookup.INFIX, m_base_k, query, num, null, 0, session, generation));
         }
+        return lookup;
     }
 
-    private void SearchInsert(TreeMap<Integer, SearchWord> map, TreeSet<Integer> map_check, BaseInfo info)
+    // Search, false when a lookup failed or the query went stale
+    private boolean SearchTokens(DataSearchScore score, ArrayList<String> token, ArrayList<int[][]> range, SearchSession session, int generation)
     {
-        int[] wref = info.Wref();
-        byte[] wrank = info.Wrank();
-        for (int i = 0; i < wref.length; i++) {
-            if (!map_check.contains(wref[i])) {
-                map_check.add(wref[i]);
-                if (map.containsKey(wref[i])) {
-                    SearchWord word = map.get(wref[i]);
-                    word.Append(info.Weight(), info.Match(), wrank[i]);
-                } else {
-                    map.put(wref[i], new SearchWord(wref[i], info.Weight(), info.Match(), wrank[i]));
+        // Lookups of all tokens
+        ArrayList<ArrayList<SearchLookup>> lookup = new ArrayList<ArrayList<SearchLookup>>();
+        int lookup_num = 0;
+        for (int i = 0; i < token.size(); i++) {
+            lookup.add(SearchEntry(token.get(i), NUM_MATCHES, ((range == null) ? null : range.get(i)), session, generation));
+            lookup_num += lookup.get(i).size();
+        }
+
+        // A single token keeps the first weight of each word, so its later lookups only run while they can beat the
+        // threshold, lookups of several tokens all add to the scores
+        try {
+            if (token.size() == 1)
+                SearchBounded(score, lookup.get(0), session, generation);
+            else
+                SearchAll(score, lookup, lookup_num, session, generation);
+        } catch (InterruptedException ex) {
+            Log.w("DataSearch::SearchTokens", "Interrupted", ex);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            Log.e("DataSearch::SearchTokens", "Lookup error", ex.getCause());
+            return false;
+        }
+        return (session == null || !session.Cancelled(generation));
+    }
+
+    private void SearchAll(DataSearchScore score, ArrayList<ArrayList<SearchLookup>> lookup, int lookup_num, SearchSession session, int generation) throws InterruptedException, ExecutionException
+    {
+        // Run together, a single lookup is not worth the hand over
+        ArrayList<Future<ArrayList<BaseInfo>>> future = new ArrayList<Future<ArrayList<BaseInfo>>>();
+        if (m_parallel && lookup_num > 1) {
+            for (ArrayList<SearchLookup> entry : lookup) {
+                for (SearchLookup item : entry)
+                    future.add(LOOKUP_EXECUTOR.submit(item));
+            }
+        }
+
+        // Merge in query order, same result as running the lookups one by one
+        int f = 0;
+        try {
+            for (ArrayList<SearchLookup> entry : lookup) {
+                // Words count once per token
+                score.Token();
+                for (SearchLookup item : entry) {
+                    if (session != null && session.Cancelled(generation))
+                        return;
+                    ArrayList<BaseInfo> list = ((future.size() > 0) ? future.get(f).get() : item.call());
+                    f++;
+                    if (list == null)
+                        continue;
+                    for (BaseInfo info : list)
+                        SearchInsert(score, info);
                 }
-            } else {
-                if (map.containsKey(wref[i])) {
-                    SearchWord word = map.get(wref[i]);
-                    word.Rescale(info.Weight(), info.Match(), wrank[i]);
+            }
+        } finally {
+            // Lookups of a stale query that have not started return at once, running ones are left to finish
+            for (; f < future.size(); f++)
+                future.get(f).cancel(false);
+        }
+    }
+
+    private void SearchBounded(DataSearchScore score, ArrayList<SearchLookup> lookup, SearchSession session, int generation) throws InterruptedException, ExecutionException
+    {
+        score.Token();
+        int i = 0;
+        while (i < lookup.size()) {
+            if (session != null && session.Cancelled(generation))
+                return;
+
+            // Next stage, lookups of one kind that can still beat the threshold
+            ArrayList<SearchLookup> stage = new ArrayList<SearchLookup>();
+            int kind = lookup.get(i).m_kind;
+            for (; i < lookup.size() && lookup.get(i).m_kind == kind; i++) {
+                if (score.Threshold() <= lookup.get(i).Bound())
+                    stage.add(lookup.get(i));
+            }
+
+            // Run together, merge in lookup order
+            ArrayList<Future<ArrayList<BaseInfo>>> future = new ArrayList<Future<ArrayList<BaseInfo>>>();
+            if (m_parallel && stage.size() > 1) {
+                for (SearchLookup item : stage)
+                    future.add(LOOKUP_EXECUTOR.submit(item));
+            }
+            int f = 0;
+            try {
+                for (; f < stage.size(); f++) {
+                    if (session != null && session.Cancelled(generation))
+                        return;
+
+                    // Lookups run one by one are checked again against the threshold raised by the earlier ones
+                    ArrayList<BaseInfo> list = null;
+                    if (future.size() > 0)
+                        list = future.get(f).get();
+                    else if (score.Threshold() <= stage.get(f).Bound())
+                        list = stage.get(f).call();
+                    if (list == null)
+                        continue;
+                    for (BaseInfo info : list)
+                        SearchInsert(score, info);
                 }
+            } finally {
+                for (; f < future.size(); f++)
+                    future.get(f).cancel(false);
             }
         }
     }
 
+    private void SearchInsert(DataSearchScore score, BaseInfo info)
+    {
+        int[] wref = info.Wref();
+        byte[] wrank = info.Wrank();
+        for (int i = 0; i < wref.length; i++) {
+            long factor = PriorityFactor(wref[i]);
+            long weight_first = Score(100, info.Match(), wrank[i], info.Distance()) * factor;
+            long weight_next = Score(info.Weight(), info.Match(), wrank[i], info.Distance()) * factor;
+            score.Add(wref[i], weight_first, weight_next);
+        }
+    }
+
+    // Priority
+    private long PriorityFactor(int id)
+    {
+        return PRIORITY_BASE + ((m_priority == null) ? 0 : m_priority.Priority(id));
+    }
+
+    private long PriorityFactorMax()
+    {
+        return PRIORITY_BASE + ((m_priority == null) ? 0 : m_priority.Max());
+    }
+
+    // Highest score of a base entry, best rank and highest priority
+    private long ScoreBound(float match, int distance)
+    {
+        return Score(100, match, 0, distance) * PriorityFactorMax();
+    }
+
+    private static long Score(long weight, float match, int rank, int distance)
+    {
+        // Weight
+        if (match == 1.0f) {
+            weight *= 1000 * 1000;
+        } else if (match > 1.0f) {
+            weight *= 1000.0 / match;
+        } else {
+            weight *= match;
+        }
+
+        // Rank
+        rank++;
+        if (rank < 1)
+            rank = 1;
+        weight /= rank;
+
+        // Edit distance
+        for (int i = 0; i < distance; i++)
+            weight /= FUZZY_PENALTY;
+        return weight;
+    }
+
+    // Ranking, words are only created for the best results
+    private ArrayList<SearchWord> ScoreList(DataSearchScore score, int num)
+    {
+        int[] top = score.Top(num);
+        ArrayList<SearchWord> list = new ArrayList<SearchWord>(top.length);
+        for (int slot : top)
+            list.add(new SearchWord(score.Id(slot), score.Weight(slot), score.Level(slot)));
+        return list;
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Least recently used cache of ranked search results
+public class DataSearchCache
+{
+    // Ranked result of one query, words are read again when shown
+    public static class Result
+    {
+        // Data
+        private int[] m_id;
+        private long[] m_weight;
+        private int[] m_level;
+
+        // Constructor
+        public Result(int[] id, long[] weight, int[] level)
+        {
+            m_id = id;
+            m_weight = weight;
+            m_level = level;
+        }
+
+        // Gets
+        public int Size() { return m_id.length; }
+        public int Id(int i) { return m_id[i]; }
+        public long Weight(int i) { return m_weight[i]; }
+        public int Level(int i) { return m_level[i]; }
+
+        // Approximate memory use
+        private long Bytes(String key)
+        {
+            return 64 + (2 * key.length()) + (16 * m_id.length);
+        }
+    }
+
+    // Size
+    private long m_size_max;
+    private long m_size = 0;
+
+    // Stamp of the files the results were computed from
+    private long m_stamp = 0;
+
+    // Statistics
+    private long m_hits = 0;
+    private long m_misses = 0;
+
+    // Results in access order
+    private LinkedHashMap<String, Result> m_result = new LinkedHashMap<String, Result>(64, 0.75f, true);
+
+    // Constructor
+    public DataSearchCache(long size_max)
+    {
+        m_size_max = size_max;
+    }
+
+    // Gets
+    public synchronized Result Get(String key, long stamp)
+    {
+        Validate(stamp);
+        Result result = m_result.get(key);
+        if (result != null)
+            m_hits++;
+        else
+            m_misses++;
+        return result;
+    }
+
+    public synchronized long Size()
+    {
+        return m_size;
+    }
+
+    public synchronized long Hits()
+    {
+        return m_hits;
+    }
+
+    public synchronized long Misses()
+    {
+        return m_misses;
+    }
+
+    // Sets
+    public synchronized void Put(String key, long stamp, Result result)
+    {
+        // Insert
+        Validate(stamp);
+        Result old = m_result.put(key, result);
+        if (old != null)
+            m_size -= old.Bytes(key);
+        m_size += result.Bytes(key);
+
+        // Evict least recently used results, the newest result is last in the iteration order
+        Iterator<Map.Entry<String, Result>> it = m_result.entrySet().iterator();
+        while (m_size > m_size_max && m_result.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Result> entry = it.next();
+            m_size -= entry.getValue().Bytes(entry.getKey());
+            it.remove();
+        }
+    }
+
+    public synchronized void Clear()
+    {
+        m_result.clear();
+        m_size = 0;
+    }
+
+    // Results of other files are dropped
+    private void Validate(long stamp)
+    {
+        if (stamp != m_stamp) {
+            Clear();
+            m_stamp = stamp;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.util.Arrays;
+
+// Open addressing map of word ids to accumulated search scores
+public class DataSearchScore
+{
+    // Table
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int EMPTY = -1;
+
+    // Slots
+    private int[] m_id = null;
+    private long[] m_weight = null;
+    private int[] m_level = null;
+    private int[] m_token = null;
+    private long[] m_seen = null;
+    private boolean[] m_taken = null;
+    private int m_size = 0;
+
+    // Current query token, each word counts once per token, tokens below 64 also when returned to later
+    private static final int SEEN_TOKENS = 64;
+    private int m_token_cur = 0;
+
+    // Smallest of the best first weights, heap with the smallest at the root
+    private long[] m_best = null;
+    private int m_best_num = 0;
+
+    // Constructor
+    public DataSearchScore(int num)
+    {
+        Allocate(INITIAL_CAPACITY);
+        m_best = new long[num];
+    }
+
+    // Next query token
+    public void Token()
+    {
+        m_token_cur++;
+    }
+
+    // Query token by number from 1, for searches that return to earlier tokens
+    public void Token(int token)
+    {
+        m_token_cur = token;
+    }
+
+    // Score of a word, first token sets the weight and later tokens add to it
+    public void Add(int id, long weight_first, long weight_next)
+    {
+        int slot = Find(id);
+        if (m_id[slot] == EMPTY) {
+            m_id[slot] = id;
+            m_weight[slot] = weight_first;
+            m_level[slot] = 0;
+            Count(slot);
+            m_size++;
+            if (4 * m_size > 3 * m_id.length)
+                Grow();
+            Best(weight_first);
+        } else if (!Counted(slot)) {
+            m_weight[slot] += weight_next;
+            m_level[slot]++;
+            Count(slot);
+        }
+    }
+
+    // Word counted for the current token, later tokens only know the last one
+    private boolean Counted(int slot)
+    {
+        if (m_token_cur < SEEN_TOKENS)
+            return ((m_seen[slot] & (1L << m_token_cur)) != 0);
+        return (m_token[slot] == m_token_cur);
+    }
+
+    private void Count(int slot)
+    {
+        m_token[slot] = m_token_cur;
+        if (m_token_cur < SEEN_TOKENS)
+            m_seen[slot] |= (1L << m_token_cur);
+    }
+
+    // Gets
+    public int Size() { return m_size; }
+    public int Id(int slot) { return m_id[slot]; }
+    public long Weight(int slot) { return m_weight[slot]; }
+    public int Level(int slot) { return m_level[slot]; }
+
+    // Weight a new word has to beat to enter the best num words of a single token search, -1 until num words are known
+    public long Threshold()
+    {
+        return ((m_best.length > 0 && m_best_num == m_best.length) ? m_best[0] : -1);
+    }
+
+    private void Best(long weight)
+    {
+        // Insert while filling, then replace the root when larger
+        int i;
+        if (m_best_num < m_best.length) {
+            i = m_best_num++;
+            while (i > 0 && m_best[(i - 1) / 2] > weight) {
+                m_best[i] = m_best[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+        } else if (m_best.length > 0 && weight > m_best[0]) {
+            i = 0;
+            while (true) {
+                int child = (2 * i) + 1;
+                if (child >= m_best_num)
+                    break;
+                if (child + 1 < m_best_num && m_best[child + 1] < m_best[child])
+                    child++;
+                if (m_best[child] >= weight)
+                    break;
+                m_best[i] = m_best[child];
+                i = child;
+            }
+        } else {
+            return;
+        }
+        m_best[i] = weight;
+    }
+
+    // Word already returned by paged searches, left out of Top from here on
+    public void Take(int id)
+    {
+        int slot = Find(id);
+        if (m_id[slot] == EMPTY) {
+            m_id[slot] = id;
+            Count(slot);
+            m_size++;
+            m_taken[slot] = true;
+            if (4 * m_size > 3 * m_id.length)
+                Grow();
+        } else {
+            m_taken[slot] = true;
+        }
+    }
+
+    // Best slots not taken yet in ranking order, taken from here on
+    public int[] Next(int num)
+    {
+        int[] ret = Top(num);
+        for (int slot : ret)
+            m_taken[slot] = true;
+        return ret;
+    }
+
+    // Best slots not taken in ranking order, level first, then weight and id
+    public int[] Top(int num)
+    {
+        // Heap with the worst kept slot at the root
+        int[] heap = new int[Math.min(num, m_size)];
+        int heap_num = 0;
+        for (int slot = 0; slot < m_id.length && heap.length > 0; slot++) {
+            if (m_id[slot] == EMPTY || m_taken[slot])
+                continue;
+            if (heap_num < heap.length) {
+                heap[heap_num] = slot;
+                HeapUp(heap, heap_num);
+                heap_num++;
+            } else if (Better(slot, heap[0])) {
+                heap[0] = slot;
+                HeapDown(heap, heap_num);
+            }
+        }
+
+        // Take the worst first
+        int[] ret = new int[heap_num];
+        for (int i = heap_num - 1; i >= 0; i--) {
+            ret[i] = heap[0];
+            heap[0] = heap[i];
+            HeapDown(heap, i);
+        }
+        return ret;
+    }
+
+    private boolean Better(int a, int b)
+    {
+        if (m_level[a] != m_level[b])
+            return (m_level[a] > m_level[b]);
+        if (m_weight[a] != m_weight[b])
+            return (m_weight[a] > m_weight[b]);
+        return (m_id[a] < m_id[b]);
+    }
+
+    private void HeapUp(int[] heap, int i)
+    {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!Better(heap[parent], heap[i]))
+                break;
+            int tmp = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = tmp;
+            i = parent;
+        }
+    }
+
+    private void HeapDown(int[] heap, int heap_num)
+    {
+        int i = 0;
+        while (true) {
+            int worst = i;
+            int left = (2 * i) + 1;
+            int right = left + 1;
+            if (left < heap_num && Better(heap[worst], heap[left]))
+                worst = left;
+            if (right < heap_num && Better(heap[worst], heap[right]))
+                worst = right;
+            if (worst == i)
+                break;
+            int tmp = heap[worst];
+            heap[worst] = heap[i];
+            heap[i] = tmp;
+            i = worst;
+        }
+    }
+
+    // Table
+    private int Find(int id)
+    {
+        int mask = m_id.length - 1;
+        int hash = id * 0x9e3779b9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (m_id[slot] != EMPTY && m_id[slot] != id)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void Allocate(int capacity)
+    {
+        m_id = new int[capacity];
+        Arrays.fill(m_id, EMPTY);
+        m_weight = new long[capacity];
+        m_level = new int[capacity];
+        m_token = new int[capacity];
+        m_seen = new long[capacity];
+        m_taken = new boolean[capacity];
+        m_size = 0;
+    }
+
+    private void Grow()
+    {
+        // Reinsert into twice the capacity
+        int[] id = m_id;
+        long[] weight = m_weight;
+        int[] level = m_level;
+        int[] token = m_token;
+        long[] seen = m_seen;
+        boolean[] taken = m_taken;
+        Allocate(2 * id.length);
+        for (int i = 0; i < id.length; i++) {
+            if (id[i] == EMPTY)
+                continue;
+            int slot = Find(id[i]);
+            m_id[slot] = id[i];
+            m_weight[slot] = weight[i];
+            m_level[slot] = level[i];
+            m_token[slot] = token[i];
+            m_seen[slot] = seen[i];
+            m_taken[slot] = taken[i];
+            m_size++;
+        }
+    }
+}
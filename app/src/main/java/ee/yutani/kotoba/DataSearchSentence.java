@@ -0,0 +1,309 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import ee.yutani.kotoba.DataFileSentence.SentenceInfo;
+import android.content.Context;
+import android.util.Log;
+
+// Full text search of example sentences, gram index of the Japanese and term index of the English text
+public class DataSearchSentence
+{
+    // Index files, shipped as assets or built in internal storage on first launch
+    private static final String INDEX_JP = "kotoba-sentence_jp.kngr";
+    private static final String INDEX_EN = "kotoba-sentence_en.kngr";
+
+    // Key pairs held in memory during each building pass
+    private static final int BUILD_BUDGET = 1024 * 1024;
+
+    // Index candidates verified at a time
+    private static final int CANDIDATES = 64;
+
+    // Query classification, English when made of Latin letters, digits, punctuation and spaces
+    private static final Pattern ENGLISH = Pattern.compile("[\\p{IsLatin}\\p{N}\\p{P}\\s]+");
+    private static final Pattern SPACE = Pattern.compile("\\s+");
+
+    // Matching sentence
+    public static class SentenceMatch
+    {
+        // Data
+        private int m_id;
+        private boolean m_english;
+        private int[] m_highlight;
+
+        // Constructor
+        private SentenceMatch(int id, boolean english, int[] highlight)
+        {
+            m_id = id;
+            m_english = english;
+            m_highlight = highlight;
+        }
+
+        // Gets
+        public int Id() { return m_id; }
+        public boolean English() { return m_english; }
+
+        // Start and end offsets of matched ranges in the Japanese or English text
+        public int[] Highlight() { return m_highlight; }
+    }
+
+    // Page of matches in id order
+    public static class SentencePage
+    {
+        // Data
+        private ArrayList<SentenceMatch> m_match;
+        private int m_next;
+
+        // Constructor
+        private SentencePage(ArrayList<SentenceMatch> match, int next)
+        {
+            m_match = match;
+            m_next = next;
+        }
+
+        // Gets
+        public ArrayList<SentenceMatch> Matches() { return m_match; }
+
+        // First id of the next page, -1 after the last page
+        public int Next() { return m_next; }
+    }
+
+    // Index keys of sentences
+    private static class SentenceKeys implements DataFileNgram.KeySource
+    {
+        // Data
+        private DataFileSentence m_sentence;
+        private boolean m_english;
+
+        // Constructor
+        private SentenceKeys(DataFileSentence sentence, boolean english)
+        {
+            m_sentence = sentence;
+            m_english = english;
+        }
+
+        // Keys
+        @Override public int Size()
+        {
+            return m_sentence.InfoLength();
+        }
+
+        @Override public int[] Keys(int id)
+        {
+            SentenceInfo info = m_sentence.InfoEntry(id);
+            if (info == null)
+                return new int[0];
+            return (m_english ? TermKeys(info.TextEn()) : DataFileNgram.TextKeys(info.TextJp()));
+        }
+    }
+
+    // Sentences
+    private DataFileSentence m_sentence = null;
+
+    // Indexes, null when missing
+    private DataFileNgram m_index_jp = null;
+    private DataFileNgram m_index_en = null;
+
+    // Constructor, builds missing indexes
+    public DataSearchSentence(Context context, DataFileSentence sentence)
+    {
+        m_sentence = sentence;
+        m_index_jp = Index(context, INDEX_JP, false);
+        m_index_en = Index(context, INDEX_EN, true);
+    }
+
+    private DataFileNgram Index(Context context, String fn, boolean english)
+    {
+        // Shipped with the package
+        try {
+            return new DataFileNgram(context, fn);
+        } catch (IOException ex) {
+            // Built on the device
+        }
+
+        // Built since the last package update
+        File file = new File(context.getFilesDir(), fn);
+        try {
+            if (!file.exists() || file.lastModified() < DataStream.PackageTime(context)) {
+                File temp = new File(context.getFilesDir(), fn + ".tmp");
+                OutputStream os = new FileOutputStream(temp);
+                try {
+                    DataFileNgram.Build(new SentenceKeys(m_sentence, english), BUILD_BUDGET, new File(context.getFilesDir(), fn + ".data"), os);
+                } finally {
+                    os.close();
+                }
+                if (!temp.renameTo(file))
+                    throw new IOException("Failed to rename " + temp.getPath());
+            }
+            return new DataFileNgram(file);
+        } catch (IOException ex) {
+            Log.e("DataSearchSentence::Index", "Index " + fn + ": IO error", ex);
+            return null;
+        }
+    }
+
+    // Search, page of up to num matches from id_s on
+    public SentencePage Search(String query, int id_s, int num)
+    {
+        ArrayList<SentenceMatch> match = new ArrayList<SentenceMatch>();
+
+        // Query keys, English terms or Japanese grams of the text without spaces
+        boolean english = ENGLISH.matcher(query).matches();
+        String text = (english ? query.toLowerCase(Locale.ENGLISH) : SPACE.matcher(query).replaceAll(""));
+        String[] terms = (english ? Terms(text) : null);
+        int[] keys = (english ? TermKeys(text) : DataFileNgram.Grams(text));
+        DataFileNgram index = (english ? m_index_en : m_index_jp);
+        if (index == null || keys.length == 0 || id_s < 0)
+            return new SentencePage(match, -1);
+
+        // Candidates in id order, verified against the text
+        while (true) {
+            int[] id = index.FindKeys(keys, id_s, CANDIDATES);
+            for (int i = 0; i < id.length; i++) {
+                SentenceInfo info = m_sentence.InfoEntry(id[i]);
+                if (info == null)
+                    continue;
+                int[] highlight = (english ? HighlightTerms(info.TextEn(), terms) : HighlightText(info.TextJp(), text));
+                if (highlight == null)
+                    continue;
+                match.add(new SentenceMatch(id[i], english, highlight));
+                if (match.size() == num)
+                    return new SentencePage(match, ((i + 1 < id.length || id.length == CANDIDATES) ? id[i] + 1 : -1));
+            }
+            if (id.length < CANDIDATES)
+                return new SentencePage(match, -1);
+            id_s = id[id.length - 1] + 1;
+        }
+    }
+
+    // Highlights, null when the sentence does not match
+    private static int[] HighlightText(String text, String query)
+    {
+        ArrayList<Integer> range = new ArrayList<Integer>();
+        int pos = text.indexOf(query);
+        while (pos >= 0) {
+            range.add(pos);
+            range.add(pos + query.length());
+            pos = text.indexOf(query, pos + query.length());
+        }
+        return Ranges(range);
+    }
+
+    private static int[] HighlightTerms(String text, String[] terms)
+    {
+        // Words of the text that are query terms
+        ArrayList<Integer> range = new ArrayList<Integer>();
+        boolean[] found = new boolean[terms.length];
+        int pos = 0;
+        while (pos < text.length()) {
+            int word_s = TermStart(text, pos);
+            int word_e = TermEnd(text, word_s);
+            if (word_s == word_e)
+                break;
+            String word = text.substring(word_s, word_e).toLowerCase(Locale.ENGLISH);
+            for (int i = 0; i < terms.length; i++) {
+                if (terms[i].equals(word)) {
+                    range.add(word_s);
+                    range.add(word_e);
+                    found[i] = true;
+                    break;
+                }
+            }
+            pos = word_e;
+        }
+
+        // All terms present
+        for (boolean entry : found) {
+            if (!entry)
+                return null;
+        }
+        return Ranges(range);
+    }
+
+    private static int[] Ranges(ArrayList<Integer> range)
+    {
+        if (range.size() == 0)
+            return null;
+        int[] ret = new int[range.size()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = range.get(i);
+        return ret;
+    }
+
+    // English terms, runs of letters and digits
+    private static String[] Terms(String text)
+    {
+        ArrayList<String> terms = new ArrayList<String>();
+        int pos = 0;
+        while (pos < text.length()) {
+            int word_s = TermStart(text, pos);
+            int word_e = TermEnd(text, word_s);
+            if (word_s == word_e)
+                break;
+            String term = text.substring(word_s, word_e).toLowerCase(Locale.ENGLISH);
+            if (!terms.contains(term))
+                terms.add(term);
+            pos = word_e;
+        }
+        return terms.toArray(new String[terms.size()]);
+    }
+
+    private static int[] TermKeys(String text)
+    {
+        // Hashes of distinct terms, collisions are removed by verification
+        String[] terms = Terms(text);
+        int[] keys = new int[terms.length];
+        for (int i = 0; i < terms.length; i++)
+            keys[i] = terms[i].hashCode();
+        Arrays.sort(keys);
+        int num = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (num == 0 || keys[num - 1] != keys[i])
+                keys[num++] = keys[i];
+        }
+        return Arrays.copyOf(keys, num);
+    }
+
+    private static int TermStart(String text, int pos)
+    {
+        while (pos < text.length() && !Character.isLetterOrDigit(text.charAt(pos)))
+            pos++;
+        return pos;
+    }
+
+    private static int TermEnd(String text, int pos)
+    {
+        while (pos < text.length() && Character.isLetterOrDigit(text.charAt(pos)))
+            pos++;
+        return pos;
+    }
+}
@@ -22,145 +22,262 @@
 package ee.yutani.kotoba;
 
 // Imports
-import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
-// Asset file stream class
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+// Memory mapped asset file class
 public class DataStream
 {
-    // Buffer size
-    static final int BUFFER_SIZE = 256;
+    // Extraction buffer size
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // Decompressed blocks of all KDB v2 files
+    private static final DataBlockCache BLOCK_CACHE = new DataBlockCache(4 * 1024 * 1024);
+    private static final AtomicInteger BLOCK_STREAM = new AtomicInteger(0);
+
+    // Mapped file, only accessed through absolute offsets so that it can be shared between threads
+    private ByteBuffer m_map = null;
 
-    // Streams
-    InputStream m_fs = null;
-    InputStream m_bs = null;
+    // Compressed blocks
+    private boolean m_packed = false;
+    private int m_stream_id = 0;
+    private int m_block_size = 0;
+    private int m_length = 0;
+    private int[] m_block_offset = null;
 
-    // Offset
-    private long m_offset = 0;
+    // Identity of the file contents, assets only change with the package
+    private long m_stamp = 0;
 
     // Constructor
-    public DataStream(InputStream fs, boolean use_buffer)
+    public DataStream(Context context, String fn) throws IOException
     {
-        // File stream
-        m_fs = fs;
-        m_fs.mark(0x0fffffff);
-
-        // Buffered stream
-        if (use_buffer) {
-            m_bs = new BufferedInputStream(m_fs, BUFFER_SIZE);
-            m_bs.mark(0x0fffffff);
-        }
+        // Map uncompressed asset directly from the package
+        m_map = MapAsset(context, fn);
+
+        // Map copy in internal storage
+        if (m_map == null)
+            m_map = MapFile(Extract(context, fn));
+        Open(PackageTime(context));
     }
 
-    public void Seek(long offset) throws IOException
+    // Constructor for files written on the device, such as indexes built on first launch
+    public DataStream(File file) throws IOException
     {
-        m_fs.reset();
-        m_fs.skip(offset);
-        if (m_bs != null) {
-            m_bs = new BufferedInputStream(m_fs, BUFFER_SIZE);
+        m_map = MapFile(file);
+        Open(file.lastModified());
+    }
+
+    private void Open(long time)
+    {
+        // Byte order
+        m_map.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Block directory of KDB v2 files, v1 files are read as they are
+        if (m_map.capacity() >= DataCompress.KDB2_HEADER && m_map.getInt(0) == DataCompress.KDB2_MAGIC) {
+            m_packed = true;
+            m_stream_id = BLOCK_STREAM.incrementAndGet();
+            m_block_size = m_map.getInt(4);
+            m_length = m_map.getInt(8);
+            int block_num = m_map.getInt(12);
+            m_block_offset = new int[block_num + 1];
+            for (int i = 0; i <= block_num; i++)
+                m_block_offset[i] = m_map.getInt(DataCompress.KDB2_HEADER + (4 * i));
+        } else {
+            m_length = m_map.capacity();
         }
 
-        /*
-        //if (offset < m_offset) {
-            m_bs = null;
-            m_fs.reset();
-            m_fs.skip(offset);
-            m_bs = new BufferedInputStream(m_fs, BUFFER_SIZE);
-        //} else if (offset > m_offset) {
-        //    m_bs.skip(offset - m_offset);
-        //}
-        */
-
-        m_offset = offset;
+        // Stamp
+        m_stamp = (time * 31) + m_length;
+    }
+
+    static long PackageTime(Context context)
+    {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException ex) {
+            Log.e("DataStream::PackageTime", "Package info not found", ex);
+            return 0;
+        }
     }
 
-    public long Offset()
+    // Mapping
+    private static ByteBuffer MapAsset(Context context, String fn) throws IOException
     {
-        return m_offset;
+        // Compressed assets do not have a file descriptor
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getAssets().openFd(fn);
+        } catch (FileNotFoundException ex) {
+            return null;
+        }
+
+        // Map region of package file
+        FileInputStream fs = afd.createInputStream();
+        try {
+            return fs.getChannel().map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
+        } finally {
+            fs.close();
+            afd.close();
+        }
     }
 
-    public int Read(byte[] arr) throws IOException
+    private static ByteBuffer MapFile(File file) throws IOException
     {
-        if (m_bs != null)
-            return m_bs.read(arr);
-        else
-            return m_fs.read(arr);
+        FileInputStream fs = new FileInputStream(file);
+        try {
+            FileChannel channel = fs.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            fs.close();
+        }
     }
 
-    public int ReadInt() throws IOException
+    // Extraction
+    private static File Extract(Context context, String fn) throws IOException
     {
-        // Offset
-        m_offset += 4;
+        // Reuse copy made since last package update
+        File file = new File(context.getFilesDir(), fn);
+        long time_update = PackageTime(context);
+        if (file.exists() && file.length() > 0 && file.lastModified() >= time_update)
+            return file;
 
-        // Read
-        byte[] arr = new byte[4];
-        if (Read(arr) < arr.length) {
-            assert(false);
+        // Copy to temporary file
+        File temp = new File(context.getFilesDir(), fn + ".tmp");
+        InputStream is = context.getAssets().open(fn);
+        OutputStream os = new FileOutputStream(temp);
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = is.read(buf)) > 0)
+                os.write(buf, 0, len);
+        } finally {
+            os.close();
+            is.close();
         }
 
-        // Cast
-        ByteBuffer buf = ByteBuffer.wrap(arr);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
-        return buf.getInt();
+        // Replace old copy
+        if (!temp.renameTo(file))
+            throw new IOException("Failed to rename " + temp.getPath());
+        return file;
     }
 
-    public int[] ReadIntArray(int num) throws IOException
+    // Size
+    public long Length()
     {
-        // Offset
-        m_offset += (4 * num);
+        return m_length;
+    }
 
-        // Read
-        byte[] arr = new byte[4 * num];
-        if (Read(arr) < arr.length) {
-            assert(false);
-        }
+    public long Stamp()
+    {
+        return m_stamp;
+    }
 
-        // Cast
-        ByteBuffer buf = ByteBuffer.wrap(arr);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
+    // Blocks
+    private byte[] Block(int id)
+    {
+        // Cached
+        long key = ((long) m_stream_id << 32) | id;
+        byte[] block = BLOCK_CACHE.Get(key);
+        if (block != null)
+            return block;
 
-        // Int array
-        int[] ret = new int[num];
-        for (int i = 0; i < num; i++)
-            ret[i] = buf.getInt();
-        return ret;
+        // Read compressed data
+        byte[] src = new byte[m_block_offset[id + 1] - m_block_offset[id]];
+        ByteBuffer buf = m_map.duplicate();
+        buf.position(m_block_offset[id]);
+        buf.get(src);
+
+        // Decompress
+        long trace = DataTrace.Begin();
+        block = new byte[Math.min(m_block_size, m_length - (id * m_block_size))];
+        DataCompress.Decompress(src, block);
+        BLOCK_CACHE.Put(key, block);
+        DataTrace.End("DataStream::Block", trace);
+        DataTrace.Bytes("DataStream::Block", block.length);
+        return block;
     }
 
-    public short ReadShort() throws IOException
+    // Positional reading
+    public ByteBuffer Buffer(long offset, int size)
     {
-        // Offset
-        m_offset += 2;
+        DataTrace.Bytes("DataStream::Buffer", size);
 
-        // Read
-        byte[] arr = new byte[2];
-        if (Read(arr) < arr.length) {
-            assert(false);
+        // Plain file
+        if (!m_packed) {
+            ByteBuffer buf = m_map.duplicate();
+            buf.position((int) offset);
+            buf.limit((int) offset + size);
+            buf = buf.slice();
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return buf;
         }
 
-        // Cast
+        // Empty range
+        if (size == 0)
+            return ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Range inside single block is returned without copying
+        int block_s = (int) (offset / m_block_size);
+        int block_e = (int) ((offset + size - 1) / m_block_size);
+        int block_off = (int) (offset - ((long) block_s * m_block_size));
+        if (block_s >= block_e) {
+            ByteBuffer buf = ByteBuffer.wrap(Block(block_s), block_off, size).slice();
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return buf;
+        }
+
+        // Range spanning blocks is copied together
+        byte[] arr = new byte[size];
+        int pos = 0;
+        for (int i = block_s; i <= block_e; i++) {
+            byte[] block = Block(i);
+            int len = Math.min(block.length - block_off, size - pos);
+            System.arraycopy(block, block_off, arr, pos, len);
+            pos += len;
+            block_off = 0;
+        }
         ByteBuffer buf = ByteBuffer.wrap(arr);
         buf.order(ByteOrder.LITTLE_ENDIAN);
-        return buf.getShort();
+        return buf;
     }
 
-    public String ReadString() throws IOException
+    public void Read(long offset, byte[] arr)
     {
-        // String length
-        short size = ReadShort();
+        Buffer(offset, arr.length).get(arr);
+    }
 
-        // Offset
-        m_offset += size;
+    public int ReadInt(long offset)
+    {
+        if (!m_packed)
+            return m_map.getInt((int) offset);
+        return Buffer(offset, 4).getInt(0);
+    }
 
-        // Read
-        byte[] arr = new byte[size];
-        if (Read(arr) < arr.length) {
-            assert(false);
-        }
+    public int[] ReadIntArray(long offset, int num)
+    {
+        int[] ret = new int[num];
+        Buffer(offset, 4 * num).asIntBuffer().get(ret);
+        return ret;
+    }
 
-        // Cast
-        return new String(arr, "UTF-8");
+    public short ReadShort(long offset)
+    {
+        if (!m_packed)
+            return m_map.getShort((int) offset);
+        return Buffer(offset, 2).getShort(0);
     }
 }
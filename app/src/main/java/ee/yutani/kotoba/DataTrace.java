@@ -0,0 +1,211 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Timing spans and counters, off by default and then only costing a field read per span
+public class DataTrace
+{
+    // Spans kept for the trace file, older ones are overwritten
+    private static final int EVENTS = 32 * 1024;
+
+    // Duration histogram buckets, powers of two of nanoseconds
+    private static final int BUCKETS = 48;
+
+    // Named counter
+    public static class Counter
+    {
+        // Totals
+        private long m_count = 0;
+        private long m_time = 0;
+        private long m_bytes = 0;
+
+        // Durations
+        private long[] m_bucket = new long[BUCKETS];
+
+        // Updates
+        private synchronized void Add(long time)
+        {
+            m_count++;
+            m_time += time;
+            m_bucket[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(time))]++;
+        }
+
+        private synchronized void AddBytes(long bytes)
+        {
+            m_bytes += bytes;
+        }
+
+        // Gets
+        public synchronized long Count() { return m_count; }
+        public synchronized long Time() { return m_time; }
+        public synchronized long Bytes() { return m_bytes; }
+
+        // Duration in nanoseconds below which the fraction of spans falls, as a bucket upper bound
+        public synchronized long Percentile(float fraction)
+        {
+            long target = (long) Math.ceil(fraction * m_count);
+            long sum = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                sum += m_bucket[i];
+                if (sum >= target && sum > 0)
+                    return (1L << i);
+            }
+            return 0;
+        }
+    }
+
+    // State
+    private static volatile boolean m_enabled = false;
+    private static long m_origin = System.nanoTime();
+
+    // Counters by name
+    private static ConcurrentHashMap<String, Counter> m_counter = new ConcurrentHashMap<String, Counter>();
+
+    // Events, ring buffer of spans
+    private static String[] m_event_name = new String[EVENTS];
+    private static long[] m_event_start = new long[EVENTS];
+    private static long[] m_event_time = new long[EVENTS];
+    private static long[] m_event_thread = new long[EVENTS];
+    private static long m_event_num = 0;
+
+    // Settings
+    public static boolean Enabled()
+    {
+        return m_enabled;
+    }
+
+    public static void SetEnabled(boolean enabled)
+    {
+        m_enabled = enabled;
+    }
+
+    // Spans, start is 0 when disabled so that the end is skipped as well
+    public static long Begin()
+    {
+        return (m_enabled ? System.nanoTime() : 0);
+    }
+
+    public static void End(String name, long start)
+    {
+        if (start == 0)
+            return;
+        long time = System.nanoTime() - start;
+        Entry(name).Add(time);
+
+        // Event
+        synchronized (DataTrace.class) {
+            int i = (int) (m_event_num % EVENTS);
+            m_event_name[i] = name;
+            m_event_start[i] = start;
+            m_event_time[i] = time;
+            m_event_thread[i] = Thread.currentThread().getId();
+            m_event_num++;
+        }
+    }
+
+    // Counters
+    public static void Bytes(String name, long bytes)
+    {
+        if (m_enabled)
+            Entry(name).AddBytes(bytes);
+    }
+
+    public static Counter Get(String name)
+    {
+        return m_counter.get(name);
+    }
+
+    private static Counter Entry(String name)
+    {
+        Counter counter = m_counter.get(name);
+        if (counter == null) {
+            m_counter.putIfAbsent(name, new Counter());
+            counter = m_counter.get(name);
+        }
+        return counter;
+    }
+
+    public static synchronized void Clear()
+    {
+        m_counter.clear();
+        m_event_num = 0;
+        m_origin = System.nanoTime();
+    }
+
+    // Reports
+    public static String Report()
+    {
+        StringBuilder ret = new StringBuilder();
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(m_counter).entrySet()) {
+            Counter counter = entry.getValue();
+            ret.append(String.format(Locale.ENGLISH, "%s: count %d, total %.3f ms, p50 %.3f ms, p99 %.3f ms, bytes %d\n",
+                entry.getKey(), counter.Count(), counter.Time() / 1e6, counter.Percentile(0.5f) / 1e6, counter.Percentile(0.99f) / 1e6, counter.Bytes()));
+        }
+        return ret.toString();
+    }
+
+    // Chrome trace event file, complete events for spans and counters as metadata
+    public static synchronized void Write(OutputStream os) throws IOException
+    {
+        Writer writer = new OutputStreamWriter(os, "UTF-8");
+        writer.write("{\"traceEvents\":[");
+
+        // Spans, oldest first
+        long first = Math.max(0, m_event_num - EVENTS);
+        for (long k = first; k < m_event_num; k++) {
+            int i = (int) (k % EVENTS);
+            if (k > first)
+                writer.write(",");
+            writer.write(String.format(Locale.ENGLISH, "\n{\"name\":\"%s\",\"ph\":\"X\",\"pid\":0,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f}",
+                Escape(m_event_name[i]), m_event_thread[i], (m_event_start[i] - m_origin) / 1e3, m_event_time[i] / 1e3));
+        }
+        writer.write("\n],\"metadata\":{");
+
+        // Counters
+        boolean next = false;
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(m_counter).entrySet()) {
+            Counter counter = entry.getValue();
+            if (next)
+                writer.write(",");
+            writer.write(String.format(Locale.ENGLISH, "\n\"%s\":{\"count\":%d,\"total_us\":%.3f,\"p50_us\":%.3f,\"p99_us\":%.3f,\"bytes\":%d}",
+                Escape(entry.getKey()), counter.Count(), counter.Time() / 1e3, counter.Percentile(0.5f) / 1e3, counter.Percentile(0.99f) / 1e3, counter.Bytes()));
+            next = true;
+        }
+        writer.write("\n}}\n");
+        writer.flush();
+    }
+
+    private static String Escape(String text)
+    {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
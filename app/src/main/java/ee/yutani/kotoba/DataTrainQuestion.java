@@ -247,26 +247,22 @@ public class DataTrainQuestion extends AsyncTask<Boolean, Void, Void>
 
     @Override protected Void doInBackground(Boolean... restore)
     {
-        if (restore[0]) {
-
-            // State restoring
-            m_word_next = m_section.WordEntry(m_id_next);
-            if (m_id_choice != null && m_id_choice.length > 0) {
-                m_word_choice = new WordTrain[m_id_choice.length];
-                for (int i = 0; i < m_id_choice.length; i++)
-                    m_word_choice[i] = m_section.WordEntry(m_id_choice[i]);
-            }
-
-        } else {
-
-            // Load words
-            m_word_next = m_section.WordEntry(m_id_next);
-
-            // Load choices
-            m_word_choice = new WordTrain[m_id_choice.length];
-            for (int i = 0; i < m_id_choice.length; i++)
-                m_word_choice[i] = m_section.WordEntry(m_id_choice[i]);
-
+        // Question and choices are read in one batch
+        int num_choice = (m_id_choice != null) ? m_id_choice.length : 0;
+        int[] id = new int[num_choice + 1];
+        id[0] = m_id_next;
+        for (int i = 0; i < num_choice; i++)
+            id[i + 1] = m_id_choice[i];
+        WordTrain[] words = m_section.WordEntries(id);
+
+        // Load words
+        m_word_next = words[0];
+
+        // Load choices
+        if (!restore[0] || num_choice > 0) {
+            m_word_choice = new WordTrain[num_choice];
+            for (int i = 0; i < num_choice; i++)
+                m_word_choice[i] = words[i + 1];
         }
         return null;
     }
@@ -22,8 +22,14 @@
 package ee.yutani.kotoba;
 
 // Imports
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+
+import android.os.AsyncTask;
+import android.os.Process;
 
 import ee.yutani.kotoba.DataFileCategory.CategoryInfo;
 import ee.yutani.kotoba.DataFileWord.WordInfo;
@@ -89,6 +95,7 @@ public class DataTrainWord
         // Words
         public int WordLength();
         public WordTrain WordEntry(int id);
+        public WordTrain[] WordEntries(int[] id);
         public WordTrain[] WordArray(int offset, int size);
         public byte[] WordValues();
 
@@ -137,18 +144,26 @@ public class DataTrainWord
             m_id_start = id_start;
             m_id_end = id_end;
 
-            // Reset statistics
-            for (int i = 0; i < m_stats.length; i++)
-                m_stats[i] = 0;
-
             // Generate statistics
-            for (int i = 0; i < m_size; i++) {
-                int level = (values[i] & 0x7f);
-                if (level < m_stats.length)
-                    m_stats[level]++;
-                else
-                    m_stats[m_stats.length - 1]++;
-            }
+            Refresh(values);
+        }
+
+        protected PartitionTrain(CategoryTrain parent, int id, int[] stats, int offset, int size, int id_start, int id_end)
+        {
+            // Parent and id
+            m_parent = parent;
+            m_id = id;
+
+            // Offset and size
+            m_offset = offset;
+            m_size = size;
+
+            // Ids
+            m_id_start = id_start;
+            m_id_end = id_end;
+
+            // Statistics from snapshot
+            m_stats = stats;
         }
 
         // Offset and size
@@ -162,6 +177,13 @@ public class DataTrainWord
         // Words
         @Override public int WordLength() { return m_size; }
         @Override public WordTrain WordEntry(int id) { return m_parent.WordEntry(m_offset + id); }
+        @Override public WordTrain[] WordEntries(int[] id)
+        {
+            int[] rid = new int[id.length];
+            for (int i = 0; i < id.length; i++)
+                rid[i] = m_offset + id[i];
+            return m_parent.WordEntries(rid);
+        }
         @Override public WordTrain[] WordArray(int offset, int size) { return m_parent.WordArray(m_offset + offset, size); }
         @Override public byte[] WordValues()
         {
@@ -229,17 +251,18 @@ public class DataTrainWord
         // Category
         private DataFileCategory.CategoryInfo m_info;
 
-        // Values
+        // Values, read on first access
         private byte[] m_value = null;
 
-        // Statistics
-        private int[] m_stats = new int[TRAIN_LEVELS];
+        // Statistics and partitions, from the snapshot until the values are read, null when unknown
+        private int[] m_stats = null;
+        private ArrayList<PartitionTrain> m_partition = null;
 
-        // Partitions
-        private ArrayList<PartitionTrain> m_partition = new ArrayList<PartitionTrain>();
+        // Words whose score changed while the partitions are built in the background, null otherwise
+        private HashSet<Integer> m_pending = null;
 
         // Constructor
-        protected CategoryTrain(SectionTrain parent, int id, CategoryInfo info)
+        protected CategoryTrain(SectionTrain parent, int id, CategoryInfo info, ByteBuffer snapshot)
         {
             // Parent and id
             m_parent = parent;
@@ -248,46 +271,101 @@ public class DataTrainWord
             // Category
             m_info = info;
 
-            // Partition
-            Partition();
+            // Snapshot
+            if (snapshot != null)
+                SnapshotRead(snapshot);
+        }
+
+        // Statistics and partitions, counted when the snapshot was missing
+        private synchronized void Structure()
+        {
+            if (m_partition == null)
+                Partition();
+        }
+
+        // Values on first access, partitions from the snapshot are kept since views may hold them
+        private synchronized void Materialize()
+        {
+            if (m_partition == null) {
+                Partition();
+            } else if (m_value == null) {
+                int[] words = m_info.WordsArray();
+                byte[] value = new byte[words.length];
+                for (int i = 0; i < words.length; i++)
+                    value[i] = m_user_word.TrainQuick(words[i]);
+                m_value = value;
+            }
+        }
+
+        // Background build, counted without locks and published with the score changes made meanwhile
+        private void Rebuild()
+        {
+            synchronized (this) {
+                if (m_partition != null)
+                    return;
+                m_pending = new HashSet<Integer>();
+            }
+
+            // Load word values
+            int[] words = m_info.WordsArray();
+            byte[] value = new byte[words.length];
+            for (int i = 0; i < words.length; i++)
+                value[i] = m_user_word.TrainQuick(words[i]);
+            ArrayList<PartitionTrain> list = PartitionList(words, value);
+
+            // Score changes wait only while the changed words are counted again
+            synchronized (DataTrainWord.this) {
+                synchronized (this) {
+                    if (m_partition == null) {
+                        m_value = value;
+                        m_partition = list;
+                        StatisticsGenerate();
+                        for (int i = 0; i < words.length; i++) {
+                            if (m_pending.contains(words[i]))
+                                StatisticsChange(words[i], value[i] & 0x7f, m_user_word.TrainQuickScore(words[i]), true);
+                        }
+                        SnapshotWrite();
+                    }
+                    m_pending = null;
+                }
+            }
         }
 
         // Partitioning
-        public void Partition()
+        public synchronized void Partition()
         {
             // Load word values
             int[] words = m_info.WordsArray();
-            m_value = new byte[words.length];
+            byte[] value = new byte[words.length];
             for (int i = 0; i < words.length; i++)
-                m_value[i] = m_user_word.TrainQuick(words[i]);
+                value[i] = m_user_word.TrainQuick(words[i]);
+            ArrayList<PartitionTrain> list = PartitionList(words, value);
+            m_value = value;
+            m_partition = list;
 
-            // Partitions
-            m_partition.clear();
-            for (int i = 0; i < m_value.length; i += m_settings_partition_size) {
+            // Statistics generation
+            StatisticsGenerate();
+            SnapshotWrite();
+        }
+
+        private ArrayList<PartitionTrain> PartitionList(int[] words, byte[] value)
+        {
+            ArrayList<PartitionTrain> list = new ArrayList<PartitionTrain>();
+            for (int i = 0; i < value.length; i += m_settings_partition_size) {
                 // Size
                 int size = m_settings_partition_size;
-                if (size > m_value.length - i)
-                    size = m_value.length - i;
+                if (size > value.length - i)
+                    size = value.length - i;
 
                 // Create
                 PartitionTrain partition = new PartitionTrain(
-                    this, m_partition.size(),
-                    Arrays.copyOfRange(m_value, i, i + size),
+                    this, list.size(),
+                    Arrays.copyOfRange(value, i, i + size),
                     i, size, words[i], words[i + size - 1]
                 );
-                m_partition.add(partition);
-            }
-
-            // Reset statistics
-            for (int i = 0; i < m_stats.length; i++)
-                m_stats[i] = 0;
-
-            // Statistics generation
-            for (PartitionTrain partition : m_partition) {
-                int[] stats = partition.Statistics();
-                for (int i = 0; i < stats.length; i++)
-                    m_stats[i] += stats[i];
+                list.add(partition);
             }
+            return list;
         }
 
         // Info
@@ -295,33 +373,58 @@ public class DataTrainWord
         @Override public String Name() { return m_info.Name(); }
 
         // Words
-        @Override public int WordLength() { return m_value.length; }
+        @Override public int WordLength() { return m_info.WordsLength(); }
         @Override public WordTrain WordEntry(int id)
         {
             int[] rid = m_info.WordsArray(id, 1);
             return new WordTrain(rid[0]);
         }
+        @Override public WordTrain[] WordEntries(int[] id)
+        {
+            // Words in category
+            int[] rid = new int[id.length];
+            for (int i = 0; i < id.length; i++)
+                rid[i] = m_info.WordsArray(id[i], 1)[0];
+
+            // Generate array
+            return WordTrainArray(rid);
+        }
         @Override public WordTrain[] WordArray(int offset, int size)
         {
             // Words in category
             int[] rid = m_info.WordsArray(offset, size);
 
             // Generate array
-            WordTrain[] list = new WordTrain[size];
-            for (int i = 0; i < size; i++)
-                list[i] = new WordTrain(rid[i]);
+            return WordTrainArray(rid);
+        }
+        private WordTrain[] WordTrainArray(int[] rid)
+        {
+            WordInfo[] info = m_file_word.InfoEntries(rid);
+            WordTrain[] list = new WordTrain[rid.length];
+            for (int i = 0; i < rid.length; i++)
+                list[i] = new WordTrain(info[i], m_user_word.TrainEntry(rid[i]));
             return list;
         }
         @Override public byte[] WordValues()
         {
+            Materialize();
             return m_value;
         }
 
         // Sections
-        @Override public int SectionLength() { return m_partition.size(); }
-        @Override public SectionTrain SectionEntry(int id) { return m_partition.get(id); }
+        @Override public int SectionLength()
+        {
+            Structure();
+            return m_partition.size();
+        }
+        @Override public SectionTrain SectionEntry(int id)
+        {
+            Structure();
+            return m_partition.get(id);
+        }
         @Override public SectionTrain[] SectionArray()
         {
+            Structure();
             SectionTrain[] list = new SectionTrain[m_partition.size()];
             for (int i = 0; i < m_partition.size(); i++)
                 list[i] = m_partition.get(i);
@@ -329,75 +432,127 @@ public class DataTrainWord
         }
 
         // Statistics
-        @Override public int[] Statistics() { return m_stats; }
+        @Override public int[] Statistics()
+        {
+            Structure();
+            return m_stats;
+        }
+
+        private void StatisticsGenerate()
+        {
+            m_stats = new int[TRAIN_LEVELS];
+            for (PartitionTrain partition : m_partition) {
+                int[] stats = partition.Statistics();
+                for (int i = 0; i < stats.length; i++)
+                    m_stats[i] += stats[i];
+            }
+        }
+
+        // Snapshot, word count and partition size, category histogram, then first and last id and histogram of each partition
+        private void SnapshotRead(ByteBuffer buf)
+        {
+            // Stale when the category or partitioning has changed since
+            int words = buf.getInt();
+            int partition_size = buf.getInt();
+            int partition_num = buf.getInt();
+            if (words != m_info.WordsLength() || partition_size != m_settings_partition_size || partition_num != (words + partition_size - 1) / partition_size)
+                return;
+            if (buf.remaining() != 4 * (TRAIN_LEVELS + (partition_num * (2 + TRAIN_LEVELS))))
+                return;
+
+            // Histograms
+            int[] stats = new int[TRAIN_LEVELS];
+            for (int i = 0; i < TRAIN_LEVELS; i++)
+                stats[i] = buf.getInt();
+            ArrayList<PartitionTrain> list = new ArrayList<PartitionTrain>();
+            for (int i = 0; i < partition_num; i++) {
+                int offset = i * partition_size;
+                int size = Math.min(partition_size, words - offset);
+                int id_start = buf.getInt();
+                int id_end = buf.getInt();
+                int[] pstats = new int[TRAIN_LEVELS];
+                for (int j = 0; j < TRAIN_LEVELS; j++)
+                    pstats[j] = buf.getInt();
+                list.add(new PartitionTrain(this, i, pstats, offset, size, id_start, id_end));
+            }
+            m_partition = list;
+            m_stats = stats;
+        }
+
+        private synchronized void SnapshotWrite()
+        {
+            ByteBuffer buf = ByteBuffer.allocate(4 * (3 + TRAIN_LEVELS + (m_partition.size() * (2 + TRAIN_LEVELS))));
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(m_info.WordsLength());
+            buf.putInt(m_settings_partition_size);
+            buf.putInt(m_partition.size());
+            for (int value : m_stats)
+                buf.putInt(value);
+            for (PartitionTrain partition : m_partition) {
+                buf.putInt(partition.IdStart());
+                buf.putInt(partition.IdEnd());
+                for (int value : partition.Statistics())
+                    buf.putInt(value);
+            }
+            m_user_word.SnapshotWrite(m_id, buf);
+        }
 
         // Reset
         @Override public void Reset()
         {
-            // Database
-            int[] rid = m_info.WordsArray();
-            m_user_word.TrainReset(rid);
-
-            // Refresh data
-            m_root.Refresh();
+            ResetWords(m_info.WordsArray());
         }
 
         public void Reset(int offset, int size)
         {
-            // Database
-            int[] rid = m_info.WordsArray(offset, size);
-            m_user_word.TrainReset(rid);
-
-            // Refresh data
-            m_root.Refresh();
+            ResetWords(m_info.WordsArray(offset, size));
         }
 
-        public void Refresh()
+        public synchronized void Refresh()
         {
+            // Values read since the snapshot
+            if (m_value == null)
+                return;
+
             // Reload word values
             int[] words = m_info.WordsArray();
             for (int i = 0; i < words.length; i++)
                 m_value[i] = m_user_word.TrainQuick(words[i]);
-
-            // Partition
-            for (PartitionTrain partition : m_partition)
-                partition.Refresh(Arrays.copyOfRange(m_value, partition.m_offset, partition.m_offset + partition.m_size));
-
-            // Reset statistics
-            for (int i = 0; i < m_stats.length; i++)
-                m_stats[i] = 0;
-
-            // Statistics generation
-            for (PartitionTrain partition : m_partition) {
-                int[] stats = partition.Statistics();
-                for (int i = 0; i < stats.length; i++)
-                    m_stats[i] += stats[i];
-            }
         }
 
         // Updates
-        public void StatisticsScore(int id, int score_old, int score_new)
+        public synchronized void StatisticsScore(int id, int score_old, int score_new)
+        {
+            if (StatisticsChange(id, score_old, score_new, true))
+                SnapshotWrite();
+        }
+
+        private synchronized boolean StatisticsChange(int id, int score_old, int score_new, boolean value)
         {
             // Bounds
             if (score_old < 0)
                 score_old = 0;
-            if (score_old >= m_stats.length)
-                score_old = m_stats.length - 1;
+            if (score_old >= TRAIN_LEVELS)
+                score_old = TRAIN_LEVELS - 1;
             if (score_new < 0)
                 score_new = 0;
-            if (score_new >= m_stats.length)
-                score_new = m_stats.length - 1;
+            if (score_new >= TRAIN_LEVELS)
+                score_new = TRAIN_LEVELS - 1;
 
-            // Check
-            if (score_old == score_new)
-                return;
+            // Check, unknown statistics are counted from the values when needed
+            if (m_pending != null)
+                m_pending.add(id);
+            if (score_old == score_new || m_partition == null)
+                return false;
 
             // Value
-            int[] rid = m_info.WordsArray();
-            for (int i = 0; i < rid.length; i++) {
-                if (rid[i] == id) {
-                    m_value[i] = (byte)((m_value[i] & 0x80) | score_new);
-                    break;
+            if (value && m_value != null) {
+                int[] rid = m_info.WordsArray();
+                for (int i = 0; i < rid.length; i++) {
+                    if (rid[i] == id) {
+                        m_value[i] = (byte)((m_value[i] & 0x80) | score_new);
+                        break;
+                    }
                 }
             }
 
@@ -412,6 +567,7 @@ public class DataTrainWord
                     break;
                 }
             }
+            return true;
         }
     }
 
@@ -423,10 +579,28 @@ public class DataTrainWord
         // Constructor
         protected RootTrain()
         {
-            // Categories
+            // Categories, statistics from the snapshot
             ArrayList<CategoryInfo> list = m_file_category.InfoList();
-            for (int i = 0; i < list.size(); i++)
-                m_category.add(new CategoryTrain(this, i, list.get(i)));
+            ByteBuffer[] snapshot = m_user_word.SnapshotRead(list.size());
+            final ArrayList<CategoryTrain> stale = new ArrayList<CategoryTrain>();
+            for (int i = 0; i < list.size(); i++) {
+                CategoryTrain category = new CategoryTrain(this, i, list.get(i), snapshot[i]);
+                m_category.add(category);
+                if (category.m_partition == null)
+                    stale.add(category);
+            }
+
+            // Missing or stale snapshots are rebuilt in the background, sooner when the category is shown
+            if (stale.size() > 0) {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override public void run()
+                    {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        for (CategoryTrain category : stale)
+                            category.Rebuild();
+                    }
+                });
+            }
         }
 
         // Partition
@@ -444,6 +618,7 @@ public class DataTrainWord
         // Words
         @Override public int WordLength() { return 0; }
         @Override public WordTrain WordEntry(int id) { return null; }
+        @Override public WordTrain[] WordEntries(int[] id) { return null; }
         @Override public WordTrain[] WordArray(int offset, int size) { return null; }
         @Override public byte[] WordValues() { return null; }
 
@@ -546,17 +721,21 @@ public class DataTrainWord
             if (score_new >= TRAIN_LEVELS)
                 score_new = TRAIN_LEVELS - 1;
 
-            // Check
-            int score_old = m_user.Score();
-            if (score_old == score_new)
-                return;
+            synchronized (DataTrainWord.this) {
+                // Check
+                int score_old = m_user.Score();
+                if (score_old == score_new)
+                    return;
 
-            // Change
-            m_user.SetScore(score_new);
+                // Change, training data and snapshot are not flushed apart
+                synchronized (m_user_word) {
+                    m_user.SetScore(score_new);
 
-            // Category statistics
-            for (int i = 0; i < m_cref.length; i++)
-                m_cref[i].StatisticsScore(m_info.Id(), score_old, score_new);
+                    // Category statistics
+                    for (int i = 0; i < m_cref.length; i++)
+                        m_cref[i].StatisticsScore(m_info.Id(), score_old, score_new);
+                }
+            }
         }
     }
 
@@ -583,6 +762,45 @@ public class DataTrainWord
         m_root = new RootTrain();
     }
 
+    // Reset, statistics of all categories of the words lose their scores
+    private synchronized void ResetWords(int[] rid)
+    {
+        // Words with a score
+        int num = 0;
+        int[] id = new int[rid.length];
+        int[] score = new int[rid.length];
+        for (int i = 0; i < rid.length; i++) {
+            if (m_user_word.TrainQuickScore(rid[i]) != 0) {
+                id[num] = rid[i];
+                score[num] = m_user_word.TrainQuickScore(rid[i]);
+                num++;
+            }
+        }
+        id = Arrays.copyOf(id, num);
+
+        // Training data and snapshot are not flushed apart, both are written by the next flush
+        synchronized (m_user_word) {
+            m_user_word.TrainReset(rid);
+
+            // Categories of the changed words
+            WordInfo[] info = m_file_word.InfoEntries(id);
+            boolean[] changed = new boolean[m_root.CategoryLength()];
+            for (int i = 0; i < num; i++) {
+                for (int cref : info[i].CrefArray()) {
+                    if (m_root.CategoryEntry(cref).StatisticsChange(id[i], score[i], 0, false))
+                        changed[cref] = true;
+                }
+            }
+            for (int i = 0; i < changed.length; i++) {
+                if (changed[i])
+                    m_root.CategoryEntry(i).SnapshotWrite();
+            }
+        }
+
+        // Values of categories already read
+        m_root.Refresh();
+    }
+
     // Id functions
     public IdTrain Id() { return new IdTrain(); }
     public IdTrain Id(int[] id) { return new IdTrain(id); }
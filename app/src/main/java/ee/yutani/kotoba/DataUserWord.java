@@ -28,10 +28,18 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
@@ -42,6 +50,13 @@ public class DataUserWord
     // Block parameters
     private static final int BLOCK_SIZE = 1000;
 
+    // Training statistics snapshot format
+    private static final int SNAPSHOT_VERSION = 1;
+
+    // Write-behind, changes are written at most this many milliseconds later or once this many have piled up
+    private static final long FLUSH_DELAY = 2000;
+    private static final int FLUSH_CHANGES = 64;
+
     // Word training info and functions
     public class WordUser
     {
@@ -79,10 +94,24 @@ public class DataUserWord
 
     // Prepared statements
     private SQLiteStatement m_stmt_train_update = null;
+    private SQLiteStatement m_stmt_snapshot_update = null;
+
+    // Training statistics snapshot matches the training data
+    private boolean m_snapshot_valid = true;
 
     // Values
     private byte[] m_train;
 
+    // Write-behind state, blocks and snapshot rows not yet in the database
+    private BitSet m_dirty = new BitSet();
+    private TreeMap<Integer, byte[]> m_dirty_snapshot = new TreeMap<Integer, byte[]>();
+    private int m_dirty_changes = 0;
+    private ScheduledExecutorService m_writer = null;
+    private ScheduledFuture<?> m_flush = null;
+
+    // Keeps flushes in order, and database reads away from the changes a flush is writing
+    private final Object m_flush_lock = new Object();
+
     // Constructor
     public DataUserWord(Context context, DataFileWord file_word, SQLiteDatabase db, int version_db, int version_sys)
     {
@@ -94,20 +123,26 @@ public class DataUserWord
         // Database initialization
         if (version_db == 0) {
             // New installation
+            m_snapshot_valid = false;
             TableCreate();
             version_db = version_sys;
         } else if (version_db < 3) {
             // Old database format
+            m_snapshot_valid = false;
             TableUpdateV3();
             version_db = version_sys;
         } else if (version_db < version_sys) {
             // New database format but old data
+            m_snapshot_valid = false;
             TableUpdateVX();
             version_db = version_sys;
         } else {
             // Read normally
             TableRead();
         }
+
+        // Training statistics snapshot, stale after the training data has been rebuilt
+        SnapshotCreate(m_snapshot_valid);
     }
 
     // Train entries
@@ -459,51 +494,119 @@ public class DataUserWord
         cur.close();
     }
 
-    // Training data
+    // Training data, the block is written by the next flush
     protected synchronized void TrainUpdate(int id)
     {
-        // Block
-        int block_id = id / BLOCK_SIZE;
-        int num_entry = m_train.length - (block_id * BLOCK_SIZE);
-        if (num_entry > BLOCK_SIZE)
-            num_entry = BLOCK_SIZE;
+        m_dirty.set(id / BLOCK_SIZE);
+        FlushSchedule();
+    }
 
-        // Prepared statements
-        if (m_stmt_train_update == null)
-            m_stmt_train_update = m_db.compileStatement("UPDATE word_train SET value = ? WHERE id = ?");
+    // Write-behind
+    private void FlushSchedule()
+    {
+        // Writer thread
+        if (m_writer == null)
+            m_writer = Executors.newSingleThreadScheduledExecutor();
+
+        // Delayed from the first change, immediate once enough changes have been coalesced
+        m_dirty_changes++;
+        if (m_dirty_changes == FLUSH_CHANGES) {
+            if (m_flush != null)
+                m_flush.cancel(false);
+            m_flush = m_writer.schedule(m_flush_task, 0, TimeUnit.MILLISECONDS);
+        } else if (m_flush == null) {
+            m_flush = m_writer.schedule(m_flush_task, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable m_flush_task = new Runnable() {
+        @Override public void run()
+        {
+            try {
+                Flush();
+            } catch (SQLException ex) {
+                // Changes were merged back and are retried by the next flush
+                Log.e("DataUserWord::Flush", "SQL error", ex);
+            }
+        }
+    };
+
+    // Writes the changes taken under the lock, the transaction runs without it so that training is not held up
+    public void Flush()
+    {
+        synchronized (m_flush_lock) {
+            // Changes of this flush
+            BitSet dirty;
+            TreeMap<Integer, byte[]> dirty_block = new TreeMap<Integer, byte[]>();
+            TreeMap<Integer, byte[]> dirty_snapshot;
+            synchronized (this) {
+                // Pending flush is replaced by this one
+                if (m_flush != null) {
+                    m_flush.cancel(false);
+                    m_flush = null;
+                }
+                m_dirty_changes = 0;
+                if (m_dirty.isEmpty() && m_dirty_snapshot.isEmpty())
+                    return;
+
+                // Blocks are copied, the training data keeps changing meanwhile
+                dirty = m_dirty;
+                m_dirty = new BitSet();
+                for (int block_id = dirty.nextSetBit(0); block_id >= 0; block_id = dirty.nextSetBit(block_id + 1)) {
+                    // Calculate number of entries in block
+                    int num_entry = m_train.length - (block_id * BLOCK_SIZE);
+                    if (num_entry > BLOCK_SIZE)
+                        num_entry = BLOCK_SIZE;
+                    dirty_block.put(block_id, Arrays.copyOfRange(m_train, block_id * BLOCK_SIZE, (block_id * BLOCK_SIZE) + num_entry));
+                }
+                dirty_snapshot = m_dirty_snapshot;
+                m_dirty_snapshot = new TreeMap<Integer, byte[]>();
+            }
+            long trace = DataTrace.Begin();
 
-        // Sql
-        m_stmt_train_update.bindBlob(1, Arrays.copyOfRange(m_train, block_id * BLOCK_SIZE, (block_id * BLOCK_SIZE) + num_entry));
-        m_stmt_train_update.bindLong(2, block_id);
-        m_stmt_train_update.executeUpdateDelete();
+            try {
+                FlushWrite(dirty_block, dirty_snapshot);
+            } catch (SQLException ex) {
+                synchronized (this) {
+                    // Failed changes are dirty again unless changed meanwhile, and a retry is scheduled
+                    m_dirty.or(dirty);
+                    for (Map.Entry<Integer, byte[]> entry : dirty_snapshot.entrySet()) {
+                        if (!m_dirty_snapshot.containsKey(entry.getKey()))
+                            m_dirty_snapshot.put(entry.getKey(), entry.getValue());
+                    }
+                    FlushSchedule();
+                }
+                throw ex;
+            }
+            DataTrace.End("DataUserWord::Flush", trace);
+        }
     }
 
-    // Training data reset
-    public synchronized void TrainReset(int[] id)
+    private void FlushWrite(TreeMap<Integer, byte[]> dirty_block, TreeMap<Integer, byte[]> dirty_snapshot)
     {
-        // Update data
-        for (int i = 0; i < id.length; i++)
-            m_train[id[i]] &= 0x80;
+        // Prepared statements
+        if (m_stmt_train_update == null)
+            m_stmt_train_update = m_db.compileStatement("UPDATE word_train SET value = ? WHERE id = ?");
+        if (m_stmt_snapshot_update == null)
+            m_stmt_snapshot_update = m_db.compileStatement("INSERT OR REPLACE INTO word_train_snapshot (id, version, checksum, data) VALUES (?, ?, ?, ?)");
 
-        // Database update
-        SQLiteStatement stmt_update = m_db.compileStatement("UPDATE word_train SET value = ? WHERE id = ?");
+        // Training data and snapshot together
         m_db.beginTransaction();
         try {
-            // Loop entry blocks
-            int num_blocks = m_train.length / BLOCK_SIZE + ((m_train.length % BLOCK_SIZE == 0) ? 0 : 1);
-            for (int i = 0; i < num_blocks; i++) {
-                // Calculate number of entries in block
-                int num_entry = m_train.length - (i * BLOCK_SIZE);
-                if (num_entry > BLOCK_SIZE)
-                    num_entry = BLOCK_SIZE;
-
-                // Values
-                byte[] value_arr = Arrays.copyOfRange(m_train, i * BLOCK_SIZE, (i * BLOCK_SIZE) + num_entry);
+            // Dirty blocks
+            for (Map.Entry<Integer, byte[]> entry : dirty_block.entrySet()) {
+                m_stmt_train_update.bindBlob(1, entry.getValue());
+                m_stmt_train_update.bindLong(2, entry.getKey());
+                m_stmt_train_update.executeUpdateDelete();
+            }
 
-                // Sql
-                stmt_update.bindBlob(1, value_arr);
-                stmt_update.bindLong(2, i);
-                stmt_update.executeUpdateDelete();
+            // Dirty snapshot rows
+            for (Map.Entry<Integer, byte[]> entry : dirty_snapshot.entrySet()) {
+                m_stmt_snapshot_update.bindLong(1, entry.getKey());
+                m_stmt_snapshot_update.bindLong(2, SNAPSHOT_VERSION);
+                m_stmt_snapshot_update.bindLong(3, SnapshotChecksum(entry.getValue()));
+                m_stmt_snapshot_update.bindBlob(4, entry.getValue());
+                m_stmt_snapshot_update.executeInsert();
             }
 
             // Success
@@ -512,4 +615,96 @@ public class DataUserWord
             m_db.endTransaction();
         }
     }
+
+    // Training statistics snapshot, one row of histograms per category
+    private void SnapshotCreate(boolean valid)
+    {
+        m_db.execSQL("DROP TABLE IF EXISTS word_train_stats;");
+        m_db.execSQL(
+            "CREATE TABLE IF NOT EXISTS word_train_snapshot (" +
+                "id INT PRIMARY KEY, " +
+                "version INT NOT NULL, " +
+                "checksum INT NOT NULL, " +
+                "data BLOB NOT NULL" +
+            ");"
+        );
+        if (!valid)
+            m_db.execSQL("DELETE FROM word_train_snapshot;");
+    }
+
+    public ByteBuffer[] SnapshotRead(int num)
+    {
+        // Data of each category, null when missing, of another version or damaged
+        ByteBuffer[] ret = new ByteBuffer[num];
+        synchronized (m_flush_lock) {
+            Cursor cur = m_db.rawQuery(
+                "SELECT id, version, checksum, data FROM word_train_snapshot",
+                null
+            );
+            if (cur.moveToFirst()) {
+                do {
+                    int id = cur.getInt(0);
+                    byte[] data = cur.getBlob(3);
+                    if (id < 0 || id >= num || cur.getInt(1) != SNAPSHOT_VERSION || cur.getInt(2) != SnapshotChecksum(data))
+                        continue;
+                    ret[id] = ByteBuffer.wrap(data);
+                    ret[id].order(ByteOrder.LITTLE_ENDIAN);
+                } while (cur.moveToNext());
+            }
+            cur.close();
+
+            // Rows not yet flushed
+            synchronized (this) {
+                for (Map.Entry<Integer, byte[]> entry : m_dirty_snapshot.entrySet()) {
+                    if (entry.getKey() < num) {
+                        ret[entry.getKey()] = ByteBuffer.wrap(entry.getValue());
+                        ret[entry.getKey()].order(ByteOrder.LITTLE_ENDIAN);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    public synchronized void SnapshotWrite(int id, ByteBuffer data)
+    {
+        // Latest data of the category is written by the next flush
+        m_dirty_snapshot.put(id, Arrays.copyOf(data.array(), data.position()));
+        FlushSchedule();
+    }
+
+    private static int SnapshotChecksum(byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    // Training data reset
+    public synchronized void TrainReset(int[] id)
+    {
+        TrainBulk(id, (byte) 0x80, (byte) 0);
+    }
+
+    // Training data enabling
+    public synchronized void TrainSetEnabled(int[] id, boolean enabled)
+    {
+        TrainBulk(id, (byte) 0x7f, (byte) (enabled ? 0x80 : 0));
+    }
+
+    // Bulk change, only blocks with a changed value are written by the next flush
+    private void TrainBulk(int[] id, byte mask, byte set)
+    {
+        boolean changed = false;
+        for (int i = 0; i < id.length; i++) {
+            byte value = (byte) ((m_train[id[i]] & mask) | set);
+            if (value != m_train[id[i]]) {
+                m_train[id[i]] = value;
+                m_dirty.set(id[i] / BLOCK_SIZE);
+                changed = true;
+            }
+        }
+        if (changed)
+            FlushSchedule();
+    }
 }
@@ -0,0 +1,234 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ee.yutani.kotoba.DataFileWord.WordInfo;
+
+// Segmented cache of decoded words, reads without locking and second chance eviction of words read again
+public class DataWordCache
+{
+    // Share of the budget for words read more than once
+    private static final int PROTECTED_PERCENT = 80;
+
+    // Cached word with its approximate memory use
+    private static class Entry
+    {
+        private int m_id;
+        private WordInfo m_info;
+        private long m_bytes;
+
+        // Segment, changed under the cache lock only
+        private volatile boolean m_protected = false;
+
+        // Read since eviction last passed over the word
+        private volatile boolean m_referenced = false;
+
+        private Entry(int id, WordInfo info, long bytes)
+        {
+            m_id = id;
+            m_info = info;
+            m_bytes = bytes;
+        }
+    }
+
+    // Size
+    private long m_size_max;
+    private long m_size_probation = 0;
+    private long m_size_protected = 0;
+
+    // Stamp of the word file
+    private volatile long m_stamp = 0;
+
+    // Statistics
+    private AtomicLong m_hits = new AtomicLong(0);
+    private AtomicLong m_misses = new AtomicLong(0);
+    private long m_evictions = 0;
+
+    // All words, for reads
+    private ConcurrentHashMap<Integer, Entry> m_map = new ConcurrentHashMap<Integer, Entry>();
+
+    // Words read once, and words read again, both oldest first and changed under the cache lock only
+    private LinkedHashMap<Integer, Entry> m_probation = new LinkedHashMap<Integer, Entry>();
+    private LinkedHashMap<Integer, Entry> m_protected = new LinkedHashMap<Integer, Entry>();
+
+    // Constructor
+    public DataWordCache(long size_max)
+    {
+        m_size_max = size_max;
+    }
+
+    // Gets, locks only to promote a word read the second time
+    public WordInfo Get(int id, long stamp)
+    {
+        if (stamp != m_stamp)
+            Validate(stamp);
+
+        Entry entry = m_map.get(id);
+        if (entry == null) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+        m_hits.incrementAndGet();
+
+        // Protected words are marked, written only when unmarked to keep the entry line shared
+        if (entry.m_protected) {
+            if (!entry.m_referenced)
+                entry.m_referenced = true;
+        } else {
+            Promote(entry);
+        }
+        return entry.m_info;
+    }
+
+    public synchronized long Size()
+    {
+        return m_size_probation + m_size_protected;
+    }
+
+    public long Hits()
+    {
+        return m_hits.get();
+    }
+
+    public long Misses()
+    {
+        return m_misses.get();
+    }
+
+    public synchronized long Evictions()
+    {
+        return m_evictions;
+    }
+
+    public float HitRatio()
+    {
+        long hits = m_hits.get();
+        long total = hits + m_misses.get();
+        return ((total == 0) ? 0.0f : ((float) hits / (float) total));
+    }
+
+    // Sets
+    public synchronized void Put(int id, long stamp, WordInfo info, long bytes)
+    {
+        Validate(stamp);
+        if (m_map.containsKey(id))
+            return;
+
+        // Insert
+        Entry entry = new Entry(id, info, bytes);
+        m_probation.put(id, entry);
+        m_map.put(id, entry);
+        m_size_probation += bytes;
+        Evict(m_size_max);
+    }
+
+    // Shrinking, limit is restored for later words
+    public synchronized void Trim(long size)
+    {
+        Evict(size);
+    }
+
+    public synchronized void Clear()
+    {
+        m_map.clear();
+        m_probation.clear();
+        m_protected.clear();
+        m_size_probation = 0;
+        m_size_protected = 0;
+    }
+
+    // Second read promotes from probation, unless evicted, replaced or promoted by another thread meanwhile
+    private synchronized void Promote(Entry entry)
+    {
+        if (entry.m_protected || m_probation.get(entry.m_id) != entry)
+            return;
+        m_probation.remove(entry.m_id);
+        m_size_probation -= entry.m_bytes;
+        entry.m_protected = true;
+        entry.m_referenced = false;
+        m_protected.put(entry.m_id, entry);
+        m_size_protected += entry.m_bytes;
+        Demote();
+    }
+
+    // Eviction
+    private void Demote()
+    {
+        // Protected words not read since the last pass go back to probation
+        while (m_size_protected > (m_size_max * PROTECTED_PERCENT) / 100 && m_protected.size() > 1) {
+            Entry entry = Victim(m_protected);
+            m_size_protected -= entry.m_bytes;
+            entry.m_protected = false;
+            m_probation.put(entry.m_id, entry);
+            m_size_probation += entry.m_bytes;
+        }
+    }
+
+    private void Evict(long size)
+    {
+        // Probation first, then protected
+        while (Size() > size && m_probation.size() > 0) {
+            Entry entry = Victim(m_probation);
+            m_size_probation -= entry.m_bytes;
+            m_map.remove(entry.m_id);
+            m_evictions++;
+        }
+        while (Size() > size && m_protected.size() > 0) {
+            Entry entry = Victim(m_protected);
+            m_size_protected -= entry.m_bytes;
+            m_map.remove(entry.m_id);
+            m_evictions++;
+        }
+    }
+
+    private Entry Victim(LinkedHashMap<Integer, Entry> segment)
+    {
+        // Oldest word, read ones move to the end once per pass over the segment
+        int chances = segment.size();
+        while (true) {
+            Iterator<Entry> it = segment.values().iterator();
+            Entry entry = it.next();
+            it.remove();
+            if (entry.m_referenced && chances-- > 0) {
+                entry.m_referenced = false;
+                segment.put(entry.m_id, entry);
+                continue;
+            }
+            return entry;
+        }
+    }
+
+    // Words of other files are dropped
+    private synchronized void Validate(long stamp)
+    {
+        if (stamp != m_stamp) {
+            Clear();
+            m_stamp = stamp;
+        }
+    }
+}
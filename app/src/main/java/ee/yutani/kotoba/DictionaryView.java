@@ -79,19 +79,27 @@ public class DictionaryView implements View.OnTouchListener
     }
 
     // Info retrieval
+    public boolean Loaded()
+    {
+        return (m_info != null);
+    }
+
+    public void SetWord(WordTrain entry)
+    {
+        m_info = entry.Info();
+        m_color_exists = true;
+        m_color_level = entry.Score();
+    }
+
     private void GetInfo()
     {
-        // Search mode
-        if (m_info == null && m_word_search != null)
+        // Search mode, words are read in the background
+        if (m_info == null && m_word_search != null && m_word_search.Loaded())
             m_info = m_word_search.Word();
 
         // View mode
-        if (m_info == null && m_id >= 0 && m_section != null) {
-            WordTrain entry = m_section.WordEntry(m_id);
-            m_info = entry.Info();
-            m_color_exists = true;
-            m_color_level = entry.Score();
-        }
+        if (m_info == null && m_id >= 0 && m_section != null)
+            SetWord(m_section.WordEntry(m_id));
     }
 
     private void updateViewColor(TextView view_score){
@@ -126,7 +134,16 @@ public class DictionaryView implements View.OnTouchListener
         // Info populating
         if (m_info == null)
             GetInfo();
-        assert(m_info != null);
+
+        // Placeholder until read
+        if (m_info == null) {
+            view_score.setVisibility(View.GONE);
+            view_text_f.setText("");
+            view_text_f.setVisibility(View.GONE);
+            view_text_k.setText("");
+            view_text_e.setText("");
+            return view;
+        }
 
         // Color
         updateViewColor(view_score);
@@ -202,7 +219,8 @@ public class DictionaryView implements View.OnTouchListener
         // Info populating
         if (m_info == null)
             GetInfo();
-        assert(m_info != null);
+        if (m_info == null)
+            return;
 
         // Sentence
         Bundle next_state = new Bundle();
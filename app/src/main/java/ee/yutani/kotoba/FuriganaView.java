@@ -464,6 +464,8 @@ public class FuriganaView extends View
 
     private void text_calculate(float line_max)
     {
+        long trace = DataTrace.Begin();
+
         // Clear lines
         m_line_n.clear();
         m_line_f.clear();
@@ -575,6 +577,7 @@ public class FuriganaView extends View
         // Calculate furigana
         for (LineFurigana line : m_line_f)
             line.calculate();
+        DataTrace.End("FuriganaView::text_calculate", trace);
     }
 
     // Drawing
@@ -93,6 +93,16 @@ public class MainActivity extends Activity implements
     }
 
     // States
+    @Override public void StateSearch()
+    {
+        // Search is usable, other sections wait for the rest of the database
+        LoadingDismiss();
+
+        // First time initialization
+        if (m_state_initialize)
+            StateSection(m_state_section);
+    }
+
     @Override public void StateNormal()
     {
         // Dismiss dialogs
@@ -176,6 +186,15 @@ public class MainActivity extends Activity implements
             m_dialog.setMessage(text);
     }
 
+    @Override protected void onPause()
+    {
+        // User data
+        m_app.DatabaseFlush();
+
+        // Superclass
+        super.onPause();
+    }
+
     @Override public void onSaveInstanceState(Bundle state)
     {
         // Section
@@ -210,7 +229,10 @@ public class MainActivity extends Activity implements
 
     @Override public boolean onQueryTextChange(String newText)
     {
-        return false;
+        if (m_search_section == null)
+            return false;
+        m_search_section.SearchIncremental(newText);
+        return true;
     }
 
     @Override public boolean onQueryTextSubmit(String query)
@@ -23,9 +23,15 @@ package ee.yutani.kotoba;
 
 // Imports
 import java.util.ArrayList;
+import java.util.BitSet;
 
+import ee.yutani.kotoba.DataSearch.SearchCursor;
+import ee.yutani.kotoba.DataSearch.SearchSession;
 import ee.yutani.kotoba.DataSearch.SearchWord;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.app.Fragment;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -34,17 +40,32 @@ import android.widget.BaseAdapter;
 import android.widget.ListView;
 
 // Search section
-public class MainSearchSection extends Fragment implements AppMain.FragmentCallback
+public class MainSearchSection extends Fragment implements AppMain.SearchCallback
 {
     // Result list adapter
     private class SearchAdapter extends BaseAdapter
     {
         // Words
+        ArrayList<SearchWord> m_word = new ArrayList<SearchWord>();
         ArrayList<DictionaryView> m_entry = new ArrayList<DictionaryView>();
 
+        // Paging
+        private SearchCursor m_cursor = null;
+        private boolean m_cursor_busy = false;
+
+        // Rows handed to background reading
+        private BitSet m_prefetch = new BitSet();
+
         // Constructor
-        public SearchAdapter(ArrayList<SearchWord> words)
+        public SearchAdapter(ArrayList<SearchWord> words, SearchCursor cursor)
+        {
+            m_cursor = cursor;
+            Append(words);
+        }
+
+        public void Append(ArrayList<SearchWord> words)
         {
+            m_word.addAll(words);
             for (SearchWord word : words)
                 m_entry.add(new DictionaryView(getActivity(), word));
         }
@@ -57,10 +78,118 @@ public class MainSearchSection extends Fragment implements AppMain.FragmentCallb
         // View
         @Override public View getView(int position, View view, ViewGroup parent)
         {
+            // Read words around the visible ones in the background, in either direction and after jumps
+            int near_s = Math.max(position - PREFETCH_SIZE, 0);
+            int near_e = Math.min(position + PREFETCH_SIZE, m_word.size());
+            if (m_prefetch.nextClearBit(near_s) < near_e) {
+                int prefetch_s = Math.max(position - PREFETCH_AHEAD, 0);
+                int prefetch_e = Math.min(position + PREFETCH_AHEAD, m_word.size());
+                ArrayList<SearchWord> words = new ArrayList<SearchWord>();
+                for (int i = m_prefetch.nextClearBit(prefetch_s); i < prefetch_e; i = m_prefetch.nextClearBit(i + 1))
+                    words.add(m_word.get(i));
+                m_prefetch.set(prefetch_s, prefetch_e);
+                new PrefetchTask(this, words).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+
+            // Next page when close to the end
+            if (position + PREFETCH_SIZE >= m_word.size() && m_cursor != null && !m_cursor_busy && !m_cursor.End()) {
+                m_cursor_busy = true;
+                new PageTask(this).execute();
+            }
             return m_entry.get(position).getView(position, view, parent);
         }
     }
 
+    // Background reading of word info
+    private class PrefetchTask extends AsyncTask<Void, Void, Void>
+    {
+        // Data
+        private SearchAdapter m_adapter;
+        private ArrayList<SearchWord> m_word;
+
+        // Constructor
+        public PrefetchTask(SearchAdapter adapter, ArrayList<SearchWord> words)
+        {
+            m_adapter = adapter;
+            m_word = words;
+        }
+
+        // Reading
+        @Override protected Void doInBackground(Void... params)
+        {
+            m_search.Prefetch(m_word);
+            return null;
+        }
+
+        @Override protected void onPostExecute(Void result)
+        {
+            if (m_adapter == m_result_adapter)
+                m_adapter.notifyDataSetChanged();
+        }
+    }
+
+    // Background search of the next page
+    private class PageTask extends AsyncTask<Void, Void, ArrayList<SearchWord>>
+    {
+        // Data
+        private SearchAdapter m_adapter;
+
+        // Constructor
+        public PageTask(SearchAdapter adapter)
+        {
+            m_adapter = adapter;
+        }
+
+        // Search
+        @Override protected ArrayList<SearchWord> doInBackground(Void... params)
+        {
+            return m_adapter.m_cursor.Next();
+        }
+
+        @Override protected void onPostExecute(ArrayList<SearchWord> result)
+        {
+            m_adapter.m_cursor_busy = false;
+            if (m_adapter != m_result_adapter || result.size() == 0)
+                return;
+            m_adapter.Append(result);
+            m_adapter.notifyDataSetChanged();
+        }
+    }
+
+    // Incremental search task, results of stale queries are dropped
+    private class SearchTask extends AsyncTask<Void, Void, ArrayList<SearchWord>>
+    {
+        // Query
+        private String m_query;
+        private int m_generation;
+
+        // Constructor
+        public SearchTask(String query)
+        {
+            m_query = query;
+            m_generation = m_session.Next();
+        }
+
+        // Search
+        @Override protected ArrayList<SearchWord> doInBackground(Void... params)
+        {
+            return m_session.Search(m_query, m_generation);
+        }
+
+        @Override protected void onPostExecute(ArrayList<SearchWord> result)
+        {
+            if (result == null || m_task != this || m_result_view == null)
+                return;
+            m_task = null;
+            m_state_query = m_query;
+            SearchShow(m_query, result);
+        }
+    }
+
+    // Words read on both sides of the visible ones, reading starts again when fewer are known on either side
+    private static final int PREFETCH_SIZE = 20;
+    private static final int PREFETCH_AHEAD = 40;
+
     // Arguments
     public static final String STATE_QUERY = "query";
     public static final String STATE_SCROLL_INDEX = "scroll_index";
@@ -69,11 +198,14 @@ public class MainSearchSection extends Fragment implements AppMain.FragmentCallb
     // App
     private AppMain m_app = null;
     private DataSearch m_search = null;
+    private SearchSession m_session = null;
+    private SearchTask m_task = null;
 
     // State
     private String m_state_query = "";
     private int m_state_scroll_index = -1;
     private int m_state_scroll_top = -1;
+    private boolean m_state_scroll_restore = false;
 
     // List
     private ListView m_result_view = null;
@@ -142,14 +274,13 @@ public class MainSearchSection extends Fragment implements AppMain.FragmentCallb
         // Database
         DataMain data = m_app.Database();
         m_search = data.Search();
+        m_session = m_search.Session();
 
-        // Search
-        if (m_state_query.length() > 0)
+        // Search, list scroll is restored when the results arrive
+        if (m_state_query.length() > 0) {
+            m_state_scroll_restore = (m_state_scroll_index >= 0);
             Search(m_state_query);
-
-        // List scroll
-        if (m_state_scroll_index >= 0)
-            m_result_view.setSelectionFromTop(m_state_scroll_index, m_state_scroll_top);
+        }
     }
 
     // Destroy events
@@ -199,15 +330,42 @@ public class MainSearchSection extends Fragment implements AppMain.FragmentCallb
     // Search
     public void Search(String query)
     {
-        // Save query string
+        // Save query string, searched once loaded
         m_state_query = query;
 
-        // Search
-        ArrayList<SearchWord> result = m_search.Search(query);
-        m_result_adapter = new SearchAdapter(result);
-        m_result_view.setAdapter(m_result_adapter);
+        // Search in the background like incremental searches, replacing the one in progress
+        SearchIncremental(query);
 
         // Focus
         m_result_view.requestFocus();
     }
+
+    public void SearchIncremental(String query)
+    {
+        // Not loaded yet
+        if (m_session == null)
+            return;
+
+        // Settings
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(getActivity());
+        m_search.SetFuzzy(settings.getBoolean("fuzzy_search", true));
+
+        // Replace search in progress, its generation is stale from here on
+        if (m_task != null)
+            m_task.cancel(false);
+        m_task = new SearchTask(query);
+        m_task.execute();
+    }
+
+    private void SearchShow(String query, ArrayList<SearchWord> result)
+    {
+        m_result_adapter = new SearchAdapter(result, m_search.Cursor(query, result));
+        m_result_view.setAdapter(m_result_adapter);
+
+        // List scroll of the saved state
+        if (m_state_scroll_restore) {
+            m_state_scroll_restore = false;
+            m_result_view.setSelectionFromTop(m_state_scroll_index, m_state_scroll_top);
+        }
+    }
 }
@@ -135,13 +135,12 @@ public class MainWordsTrain extends Fragment implements View.OnClickListener, Da
 
                 // English text
                 String text_e = "";
-                Sense[] sense = info.SenseArray();
-                for (int i = 0; i < sense.length && i < MAX_SENSE_ENTRIES; i++) {
-                    String[] gloss = sense[i].GlossArray();
-                    for (int j = 0; j < gloss.length && j < MAX_GLOSS_ENTRIES; j++) {
+                for (int i = 0; i < info.SenseLength() && i < MAX_SENSE_ENTRIES; i++) {
+                    Sense sense = info.SenseEntry(i);
+                    for (int j = 0; j < sense.GlossLength() && j < MAX_GLOSS_ENTRIES; j++) {
                         if (text_e.length() > 0)
                             text_e += ", ";
-                        text_e += gloss[j];
+                        text_e += sense.GlossEntry(j);
                     }
                 }
                 text_e = text_e.trim();
@@ -538,13 +537,12 @@ public class MainWordsTrain extends Fragment implements View.OnClickListener, Da
 
             // English answers
             String text_e = "";
-            Sense[] sense = info.SenseArray();
-            for (int i = 0; i < sense.length && i < MAX_SENSE_ENTRIES; i++) {
-                String[] gloss = sense[i].GlossArray();
-                for (int j = 0; j < gloss.length && j < MAX_GLOSS_ENTRIES; j++) {
+            for (int i = 0; i < info.SenseLength() && i < MAX_SENSE_ENTRIES; i++) {
+                Sense sense = info.SenseEntry(i);
+                for (int j = 0; j < sense.GlossLength() && j < MAX_GLOSS_ENTRIES; j++) {
                     if (text_e.length() > 0)
                         text_e += ", ";
-                    text_e += gloss[j];
+                    text_e += sense.GlossEntry(j);
                 }
             }
             text_e = text_e.trim();
@@ -611,13 +609,12 @@ public class MainWordsTrain extends Fragment implements View.OnClickListener, Da
 
         // English text
         String text_e = "";
-        Sense[] sense = info.SenseArray();
-        for (int i = 0; i < sense.length && i < MAX_SENSE_ENTRIES; i++) {
-            String[] gloss = sense[i].GlossArray();
-            for (int j = 0; j < gloss.length && j < MAX_GLOSS_ENTRIES; j++) {
+        for (int i = 0; i < info.SenseLength() && i < MAX_SENSE_ENTRIES; i++) {
+            Sense sense = info.SenseEntry(i);
+            for (int j = 0; j < sense.GlossLength() && j < MAX_GLOSS_ENTRIES; j++) {
                 if (text_e.length() > 0)
                     text_e += ", ";
-                text_e += gloss[j];
+                text_e += sense.GlossEntry(j);
             }
         }
 
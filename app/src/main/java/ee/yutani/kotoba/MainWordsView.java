@@ -26,6 +26,7 @@ import java.util.ArrayList;
 
 import ee.yutani.kotoba.DataTrainWord.IdTrain;
 import ee.yutani.kotoba.DataTrainWord.SectionTrain;
+import ee.yutani.kotoba.DataTrainWord.WordTrain;
 import android.app.Fragment;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -58,10 +59,20 @@ public class MainWordsView extends Fragment implements AppMain.FragmentCallback
         // View
         @Override public View getView(int position, View view, ViewGroup parent)
         {
+            // Load a screen worth of words at once
+            if (!m_entry.get(position).Loaded()) {
+                int size = Math.min(PREFETCH_SIZE, m_entry.size() - position);
+                WordTrain[] words = m_section.WordArray(position, size);
+                for (int i = 0; i < size; i++)
+                    m_entry.get(position + i).SetWord(words[i]);
+            }
             return m_entry.get(position).getView(position, view, parent);
         }
     }
 
+    // Number of words read together when list is scrolled
+    private static final int PREFETCH_SIZE = 20;
+
     // Arguments
     public static final String STATE_ID = "id";
     public static final String STATE_SCROLL_INDEX = "scroll_index";
@@ -0,0 +1,158 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Block compression and KDB v2 files
+public class DataCompressTest
+{
+    // Records of the benchmark, sized like word records
+    private static final int RECORDS = 8000;
+    private static final int RECORD_MIN = 40;
+    private static final int RECORD_MAX = 400;
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    @Test public void RoundTrip()
+    {
+        Random random = new Random(2);
+        byte[] noise = new byte[100000];
+        random.nextBytes(noise);
+        byte[] zeros = new byte[70000];
+        byte[] text = TestFiles.Text(3, 100000);
+
+        // Empty, short, incompressible, long matches and literal runs past the length escapes
+        Check(new byte[0]);
+        Check(new byte[]{ 1, 2, 3 });
+        Check(Arrays.copyOf(text, 17));
+        Check(noise);
+        Check(zeros);
+        Check(text);
+        byte[] mixed = new byte[noise.length + zeros.length + text.length];
+        System.arraycopy(text, 0, mixed, 0, text.length);
+        System.arraycopy(noise, 0, mixed, text.length, noise.length);
+        System.arraycopy(zeros, 0, mixed, text.length + noise.length, zeros.length);
+        Check(mixed);
+
+        // Text compresses
+        assertTrue(DataCompress.Compress(text, 0, text.length).length < text.length / 2);
+    }
+
+    @Test public void RoundTripOffset()
+    {
+        byte[] text = TestFiles.Text(4, 50000);
+        byte[] packed = DataCompress.Compress(text, 1000, 30000);
+        byte[] ret = new byte[30000];
+        DataCompress.Decompress(packed, ret);
+        assertArrayEquals(Arrays.copyOfRange(text, 1000, 31000), ret);
+    }
+
+    @Test public void PackedStream() throws Exception
+    {
+        // Lengths that do and do not end on a block border
+        for (int len : new int[]{ 0, 1, BLOCK_SIZE, (3 * BLOCK_SIZE) + 5 }) {
+            byte[] data = TestFiles.Text(len, len);
+            DataStream ds = new DataStream(TestFiles.Pack(data, BLOCK_SIZE));
+            assertEquals(len, ds.Length());
+            byte[] ret = new byte[len];
+            ds.Read(0, ret);
+            assertArrayEquals(data, ret);
+        }
+    }
+
+    // Record reads of the plain and packed layouts, the records fit in the shared block cache
+    @Test public void Benchmark() throws Exception
+    {
+        TestFiles.BenchmarkBegin();
+
+        // Records
+        Random random = new Random(5);
+        int[] index = new int[RECORDS + 1];
+        for (int i = 0; i < RECORDS; i++)
+            index[i + 1] = index[i] + RECORD_MIN + random.nextInt(RECORD_MAX - RECORD_MIN);
+        byte[] data = TestFiles.Text(6, index[RECORDS]);
+        File plain = TestFiles.Write(data);
+        ByteArrayOutputStream packed_os = new ByteArrayOutputStream();
+        DataCompress.Pack(data, BLOCK_SIZE, packed_os);
+        byte[] packed_arr = packed_os.toByteArray();
+        File packed = TestFiles.Write(packed_arr);
+        int block_num = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        DataTrace.SetEnabled(true);
+        DataTrace.Bytes("DataCompress::File v1", plain.length());
+        DataTrace.Bytes("DataCompress::File v2", packed.length());
+        DataTrace.SetEnabled(false);
+
+        // Block cache misses, one read of the compressed block and its decompression, later passes are timed
+        ByteBuffer header = ByteBuffer.wrap(packed_arr).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] block = new byte[BLOCK_SIZE];
+        for (int pass = 0; pass < 5; pass++) {
+            for (int i = 0; i < block_num; i++) {
+                long trace = ((pass > 0) ? System.nanoTime() : 0);
+                int off = header.getInt(DataCompress.KDB2_HEADER + (4 * i));
+                byte[] src = Arrays.copyOfRange(packed_arr, off, header.getInt(DataCompress.KDB2_HEADER + (4 * (i + 1))));
+                DataCompress.Decompress(src, block);
+                DataTrace.End("DataCompress::Block miss", trace);
+            }
+        }
+
+        // Random records, timed after warming up
+        int[] order = new int[RECORDS];
+        for (int i = 0; i < RECORDS; i++)
+            order[i] = random.nextInt(RECORDS);
+        DataStream ds_plain = new DataStream(plain);
+        DataStream ds_packed = new DataStream(packed);
+        for (int pass = 0; pass < 5; pass++) {
+            Time(ds_plain, index, order, ((pass > 0) ? "DataCompress::Record v1" : null));
+            Time(ds_packed, index, order, ((pass > 0) ? "DataCompress::Record v2 cached" : null));
+        }
+        TestFiles.BenchmarkEnd("DataCompress");
+    }
+
+    private static void Time(DataStream ds, int[] index, int[] order, String name)
+    {
+        for (int id : order) {
+            long trace = ((name != null) ? System.nanoTime() : 0);
+            ds.Buffer(index[id], index[id + 1] - index[id]);
+            DataTrace.End(name, trace);
+        }
+    }
+
+    private static void Check(byte[] data)
+    {
+        byte[] packed = DataCompress.Compress(data, 0, data.length);
+        byte[] ret = new byte[data.length];
+        DataCompress.Decompress(packed, ret);
+        assertArrayEquals(data, ret);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+// Key automaton, ranges and fuzzy matching against brute force scans
+public class DataFileAutomatonTest
+{
+    // Keys
+    private static final int KEYS = 5000;
+
+    private ArrayList<String> m_key = new ArrayList<String>();
+    private DataFileAutomaton m_automaton;
+
+    @Before public void Build() throws Exception
+    {
+        Random random = new Random(10);
+        TreeSet<String> keys = new TreeSet<String>();
+        while (keys.size() < KEYS)
+            keys.add(Text(random, 2 + random.nextInt(7)));
+        m_key.addAll(keys);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataFileAutomaton.Build(m_key, os);
+        m_automaton = new DataFileAutomaton(TestFiles.Write(os.toByteArray()));
+    }
+
+    @Test public void Range()
+    {
+        assertEquals(KEYS, m_automaton.Size());
+        Random random = new Random(11);
+        for (int i = 0; i < 2000; i++) {
+            String text = Text(random, 1 + random.nextInt(4));
+            int[] ret = new int[2];
+            m_automaton.Range(text, ret);
+            int lb = 0;
+            while (lb < m_key.size() && m_key.get(lb).compareTo(text) < 0)
+                lb++;
+            int ub = lb;
+            while (ub < m_key.size() && m_key.get(ub).startsWith(text))
+                ub++;
+            assertArrayEquals(text, new int[]{ lb, ub }, ret);
+        }
+    }
+
+    // Closest keys by distance then key order, without the keys starting with the text
+    @Test public void Fuzzy()
+    {
+        Random random = new Random(12);
+        for (int i = 0; i < 300; i++) {
+            String text = ((i % 2 == 0) ? m_key.get(random.nextInt(m_key.size())) : Text(random, 3 + random.nextInt(6)));
+            for (int distance = 1; distance <= 2; distance++) {
+                for (int num : new int[]{ 1, 5, 30, KEYS }) {
+                    int[] id = new int[num];
+                    int[] dist = new int[num];
+                    int ret = m_automaton.Fuzzy(text, distance, id, dist);
+                    long[] expect = Expect(text, distance, num);
+                    assertEquals(text, expect.length, ret);
+                    for (int j = 0; j < ret; j++) {
+                        assertEquals(text, expect[j] >> 32, dist[j]);
+                        assertEquals(text, (int) expect[j], id[j]);
+                    }
+                }
+            }
+        }
+    }
+
+    private long[] Expect(String text, int distance, int num)
+    {
+        ArrayList<Long> ret = new ArrayList<Long>();
+        for (int i = 0; i < m_key.size(); i++) {
+            int dist = Distance(text, m_key.get(i));
+            if (dist <= distance && !m_key.get(i).startsWith(text))
+                ret.add(((long) dist << 32) | i);
+        }
+        long[] arr = new long[ret.size()];
+        for (int i = 0; i < arr.length; i++)
+            arr[i] = ret.get(i);
+        Arrays.sort(arr);
+        return Arrays.copyOf(arr, Math.min(num, arr.length));
+    }
+
+    private static int Distance(String a, String b)
+    {
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++)
+            row[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            int diag = row[0];
+            row[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = Math.min(Math.min(row[j] + 1, row[j - 1] + 1), diag + ((a.charAt(i - 1) == b.charAt(j - 1)) ? 0 : 1));
+                diag = row[j];
+                row[j] = cost;
+            }
+        }
+        return row[b.length()];
+    }
+
+    private static String Text(Random random, int len)
+    {
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < len; i++)
+            ret.append((char) ('a' + random.nextInt(6)));
+        return ret.toString();
+    }
+}
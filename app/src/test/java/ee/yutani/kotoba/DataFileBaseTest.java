@@ -0,0 +1,364 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import ee.yutani.kotoba.DataFileBase.BaseInfo;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Base files written by Build, plain and front coded layouts
+public class DataFileBaseTest
+{
+    // Key characters, Latin, kana, kanji, full width and a supplementary character
+    private static final String[] CHARS = { "a", "b", "c", "d", "e", "あ", "い", "う", "漢", "字", "Ａ", "𠀀" };
+
+    // Entries
+    private static final int KEYS = 6000;
+    private static final int MATCHES = 30;
+
+    // Benchmark
+    private static final int BENCHMARK_KEYS = 170000;
+    private static final int BENCHMARK_QUERIES = 20000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ArrayList<String> m_key = new ArrayList<String>();
+    private ArrayList<int[]> m_wref = new ArrayList<int[]>();
+
+    @Before public void Keys()
+    {
+        // Sorted keys, none a prefix of another so that equal ranges are contiguous
+        Random random = new Random(7);
+        TreeSet<String> keys = new TreeSet<String>();
+        while (keys.size() < KEYS)
+            keys.add(Text(random, 1 + random.nextInt(6)) + "$");
+        m_key.addAll(keys);
+
+        // Word references with ranks
+        for (int i = 0; i < m_key.size(); i++) {
+            int[] wref = new int[1 + random.nextInt(4)];
+            for (int j = 0; j < wref.length; j++)
+                wref[j] = (random.nextInt(8) << 28) | random.nextInt(200000);
+            m_wref.add(wref);
+        }
+    }
+
+    @Test public void RoundTrip() throws Exception
+    {
+        for (int block_entries : new int[]{ 0, 1, 7, 64 }) {
+            DataFileBase base = Open(block_entries, DataFileBase.CACHE_DEPTH, DataFileBase.CACHE_BUDGET);
+            for (int i = 0; i < m_key.size(); i += 13) {
+                ArrayList<BaseInfo> info = base.Find(m_key.get(i), 1);
+                assertEquals(1, info.size());
+                assertEquals(i, info.get(0).Id());
+                assertEquals(m_key.get(i), info.get(0).Text());
+                assertEquals(1.0f, info.get(0).Match(), 0);
+                Wref(info.get(0));
+            }
+        }
+    }
+
+    // Front coded layout finds the same entries as the plain layout, and the equal ranges of a brute force scan
+    @Test public void FrontCoded() throws Exception
+    {
+        DataFileBase plain = Open(0, 0, 0);
+        DataFileBase[] coded = { Open(1, 0, 0), Open(7, 0, 0), Open(64, 0, 0) };
+        for (String query : Queries()) {
+            int[] range = new int[]{ -1, -1 };
+            String expect = Describe(plain.Find(query, MATCHES, range));
+            assertArrayEquals(query, Range(query), range);
+            for (DataFileBase base : coded) {
+                int[] coded_range = new int[]{ -1, -1 };
+                assertEquals(query, expect, Describe(base.Find(query, MATCHES, coded_range)));
+                assertArrayEquals(query, range, coded_range);
+            }
+        }
+    }
+
+    // Files without keys find nothing in either layout
+    @Test public void Empty() throws Exception
+    {
+        for (int block_entries : new int[]{ 0, 1, 64 }) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            DataFileBase.Build(new ArrayList<String>(), new ArrayList<int[]>(), block_entries, os);
+            DataFileBase base = new DataFileBase(TestFiles.Write(os.toByteArray()), 0, 0);
+            for (String query : new String[]{ "", "a", "漢字" }) {
+                int[] range = new int[]{ -1, -1 };
+                assertEquals(query, 0, base.Find(query, MATCHES, range).size());
+                assertArrayEquals(query, new int[]{ 0, 0 }, range);
+            }
+        }
+    }
+
+    // N-gram index of other keys is refused
+    @Test public void StaleNgram() throws Exception
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataFileBase.Build(m_key, m_wref, 0, os);
+        File file = TestFiles.Write(os.toByteArray());
+        boolean refused = false;
+        for (int num : new int[]{ m_key.size(), m_key.size() - 1 }) {
+            os = new ByteArrayOutputStream();
+            DataFileNgram.Build(m_key.subList(0, num), os);
+            File ngram = TestFiles.Write(os.toByteArray());
+            assertEquals(num, new DataFileNgram(ngram).Size());
+            try {
+                new DataFileBase(file, null, ngram, 0, 0);
+            } catch (IOException ex) {
+                refused = true;
+            }
+            assertEquals(num != m_key.size(), refused);
+        }
+    }
+
+    // Searches narrowed by the range of a prefix find the same entries
+    @Test public void Narrowing() throws Exception
+    {
+        for (int block_entries : new int[]{ 0, 64 }) {
+            DataFileBase base = Open(block_entries, DataFileBase.CACHE_DEPTH, DataFileBase.CACHE_BUDGET);
+            for (String query : Queries()) {
+                if (query.codePointCount(0, query.length()) < 2)
+                    continue;
+                int[] range = new int[]{ -1, -1 };
+                base.Find(Prefix(query, query.codePointCount(0, query.length()) - 1), MATCHES, range);
+                assertEquals(query, Describe(base.Find(query, MATCHES)), Describe(base.Find(query, MATCHES, range)));
+            }
+        }
+    }
+
+    // Probe caches of any depth and budget find the same entries as searching the file only
+    @Test public void CacheLevels() throws Exception
+    {
+        DataFileBase plain = Open(0, 0, 0);
+        DataFileBase[] cached = { Open(0, 6, 1 << 20), Open(0, 10, 1 << 20), Open(0, 14, 1 << 20), Open(0, 14, 300), Open(0, 32, DataFileBase.CACHE_BUDGET) };
+        for (String query : Queries()) {
+            String expect = Describe(plain.Find(query, MATCHES));
+            for (DataFileBase base : cached)
+                assertEquals(query, expect, Describe(base.Find(query, MATCHES)));
+        }
+    }
+
+    // Find with the probe cache of cached depths 6, 10 and 14 against the earlier cache of boxed positions and decoded keys
+    @Test public void Benchmark() throws Exception
+    {
+        TestFiles.BenchmarkBegin();
+
+        // Keys about the size of the English base
+        Random random = new Random(9);
+        TreeSet<String> set = new TreeSet<String>();
+        while (set.size() < BENCHMARK_KEYS)
+            set.add(Text(random, 2 + random.nextInt(8)) + "$");
+        ArrayList<String> keys = new ArrayList<String>(set);
+        ArrayList<int[]> wref = new ArrayList<int[]>();
+        for (int i = 0; i < keys.size(); i++)
+            wref.add(new int[]{ i });
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataFileBase.Build(keys, wref, 0, os);
+        File file = TestFiles.Write(os.toByteArray());
+
+        // Queries
+        String[] query = new String[BENCHMARK_QUERIES];
+        for (int i = 0; i < query.length; i++)
+            query[i] = keys.get(random.nextInt(keys.size()));
+
+        // Later passes are timed
+        for (int depth : new int[]{ 0, 6, 10, 14 }) {
+            // Eytzinger cache
+            DataFileBase base = new DataFileBase(file, depth, 1 << 20);
+            String name = "DataFileBase::Find flat, depth " + depth;
+            for (int pass = 0; pass < 5; pass++) {
+                for (String text : query) {
+                    long trace = ((pass > 0) ? System.nanoTime() : 0);
+                    base.Find(text, 1);
+                    DataTrace.End(name, trace);
+                }
+            }
+
+            // Earlier cache
+            TreeMapSearch tree = new TreeMapSearch(new DataStream(file), keys.size(), depth);
+            name = "DataFileBase::Find TreeMap, depth " + depth;
+            for (int pass = 0; pass < 5; pass++) {
+                for (String text : query) {
+                    long trace = ((pass > 0) ? System.nanoTime() : 0);
+                    tree.Find(text);
+                    DataTrace.End(name, trace);
+                }
+            }
+        }
+        TestFiles.BenchmarkEnd("DataFileBase");
+    }
+
+    // Search of the earlier probe cache, keys decoded to strings and kept under boxed positions
+    private static class TreeMapSearch
+    {
+        // Data
+        private DataStream m_ds;
+        private int m_num;
+        private TreeMap<Integer, String> m_cache = new TreeMap<Integer, String>();
+
+        // Constructor
+        private TreeMapSearch(DataStream ds, int num, int depth)
+        {
+            m_ds = ds;
+            m_num = num;
+            Generate(0, num, depth);
+        }
+
+        private void Generate(int arr_s, int arr_e, int level)
+        {
+            if (level <= 0 || arr_e <= arr_s)
+                return;
+            int arr_m = arr_s + ((arr_e - arr_s) / 2);
+            m_cache.put(arr_m, Read(arr_m));
+            Generate(arr_s, arr_m, level - 1);
+            Generate(arr_m + 1, arr_e, level - 1);
+        }
+
+        private String Read(int id)
+        {
+            int offset = m_ds.ReadInt(4 + (4 * id));
+            long data = 4 + (4 * (m_num + 1));
+            byte[] arr = new byte[m_ds.ReadShort(data + offset)];
+            m_ds.Read(data + offset + 2, arr);
+            return new String(arr, UTF8);
+        }
+
+        // Lower bound of the text and its key
+        private String Find(String text)
+        {
+            int arr_s = 0;
+            int arr_e = m_num;
+            while (arr_e > arr_s) {
+                int arr_m = arr_s + ((arr_e - arr_s) / 2);
+                String key = m_cache.get(arr_m);
+                if (key == null)
+                    key = Read(arr_m);
+                if (key.compareTo(text) < 0)
+                    arr_s = arr_m + 1;
+                else
+                    arr_e = arr_m;
+            }
+            return Read(arr_s);
+        }
+    }
+
+    // Helpers
+    private DataFileBase Open(int block_entries, int cache_depth, int cache_budget) throws Exception
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataFileBase.Build(m_key, m_wref, block_entries, os);
+        File file = TestFiles.Write(os.toByteArray());
+        return new DataFileBase(file, cache_depth, cache_budget);
+    }
+
+    private List<String> Queries()
+    {
+        // Keys, their prefixes, longer texts and random texts
+        Random random = new Random(8);
+        ArrayList<String> ret = new ArrayList<String>();
+        for (int i = 0; i < m_key.size(); i += 17) {
+            String key = m_key.get(i);
+            ret.add(key);
+            ret.add(Prefix(key, 1 + random.nextInt(key.codePointCount(0, key.length()) - 1)));
+            ret.add(key + Text(random, 1));
+        }
+        for (int i = 0; i < 300; i++)
+            ret.add(Text(random, 1 + random.nextInt(4)));
+        ret.add("");
+        ret.add("!");
+        ret.add("￿");
+        return ret;
+    }
+
+    private int[] Range(String query)
+    {
+        // Keys that start with the query or that the query starts with
+        int lb = -1;
+        int ub = -1;
+        for (int i = 0; i < m_key.size(); i++) {
+            String key = m_key.get(i);
+            if (key.startsWith(query) || query.startsWith(key)) {
+                if (lb < 0)
+                    lb = i;
+                ub = i + 1;
+            } else if (lb >= 0) {
+                break;
+            }
+        }
+        if (lb < 0) {
+            // Insertion point
+            lb = 0;
+            while (lb < m_key.size() && m_key.get(lb).compareTo(query) < 0)
+                lb++;
+            ub = lb;
+        }
+        return new int[]{ lb, ub };
+    }
+
+    private String Describe(List<BaseInfo> info)
+    {
+        StringBuilder ret = new StringBuilder();
+        for (BaseInfo entry : info) {
+            assertEquals(m_key.get(entry.Id()), entry.Text());
+            Wref(entry);
+            ret.append(entry.Id()).append(':').append(entry.Match()).append(' ');
+        }
+        return ret.toString();
+    }
+
+    private void Wref(BaseInfo info)
+    {
+        int[] wref = m_wref.get(info.Id());
+        int[] ret = new int[info.Wref().length];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = (info.Wrank()[i] << 28) | info.Wref()[i];
+        assertTrue(Arrays.equals(wref, ret));
+    }
+
+    private static String Prefix(String text, int num)
+    {
+        return text.substring(0, text.offsetByCodePoints(0, num));
+    }
+
+    private static String Text(Random random, int len)
+    {
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < len; i++)
+            ret.append(CHARS[random.nextInt(CHARS.length)]);
+        return ret.toString();
+    }
+}
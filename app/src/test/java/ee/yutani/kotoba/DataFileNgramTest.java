@@ -0,0 +1,275 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+// Posting list intersection of the n-gram index against a brute force scan of the keys
+public class DataFileNgramTest
+{
+    // Few characters so that posting lists run over many skip table entries, later ones rarer
+    private static final String CHARS = "あいうえおかきくけこさしすせそた";
+
+    // Character of about one position in a thousand, like a kanji among kana
+    private static final char RARE = '漢';
+
+    // Entries
+    private static final int KEYS = 20000;
+
+    // Benchmark, candidates of an infix search
+    private static final int BENCHMARK_QUERIES = 2000;
+    private static final int BENCHMARK_NUM = 120;
+
+    private ArrayList<String> m_key = new ArrayList<String>();
+    private ArrayList<HashSet<Integer>> m_gram = new ArrayList<HashSet<Integer>>();
+    private byte[] m_data = null;
+    private DataFileNgram m_ngram = null;
+
+    @Before public void Keys() throws Exception
+    {
+        Random random = new Random(31);
+        for (int i = 0; i < KEYS; i++) {
+            String key = Text(random, 1 + random.nextInt(8));
+            m_key.add(key);
+            HashSet<Integer> gram = new HashSet<Integer>();
+            for (int entry : DataFileNgram.TextKeys(key))
+                gram.add(entry);
+            m_gram.add(gram);
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataFileNgram.Build(m_key, os);
+        m_data = os.toByteArray();
+        m_ngram = new DataFileNgram(TestFiles.Write(m_data));
+    }
+
+    // Entries from any start id containing all grams, in id order and capped
+    @Test public void Intersection()
+    {
+        Random random = new Random(32);
+        for (int i = 0; i < 500; i++) {
+            int[] grams = DataFileNgram.Grams(Query(random));
+            for (int id_s : new int[]{ 0, 1, random.nextInt(KEYS), KEYS - 1, KEYS }) {
+                for (int num : new int[]{ 1, 10, 1000, KEYS }) {
+                    assertArrayEquals(Arrays.toString(grams) + " " + id_s, Scan(grams, id_s, num), m_ngram.FindKeys(grams, id_s, num));
+                }
+            }
+        }
+        assertArrayEquals(new int[0], m_ngram.FindKeys(new int[0], 0, 10));
+        assertArrayEquals(new int[0], m_ngram.Find("xy", 10));
+    }
+
+    // Building in passes of a small budget writes the same file
+    @Test public void Passes() throws Exception
+    {
+        ByteArrayOutputStream expect = new ByteArrayOutputStream();
+        DataFileNgram.Build(m_key, expect);
+        for (int budget : new int[]{ 1, 1000, 1 << 30 }) {
+            File temp = File.createTempFile("kotoba-test", ".tmp");
+            temp.deleteOnExit();
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            DataFileNgram.Build(new DataFileNgram.KeySource() {
+                @Override public int Size() { return m_key.size(); }
+                @Override public int[] Keys(int id) { return DataFileNgram.TextKeys(m_key.get(id)); }
+            }, budget, temp, os);
+            assertArrayEquals(expect.toByteArray(), os.toByteArray());
+        }
+    }
+
+    // Intersection with skips finds the entries of stepping through the same posting lists one entry at a time
+    @Test public void Linear()
+    {
+        Random random = new Random(33);
+        LinearIndex linear = new LinearIndex(m_data);
+        for (boolean mixed : new boolean[]{ false, true }) {
+            for (String text : Benchmark(random, mixed)) {
+                assertArrayEquals(text, linear.Find(text, BENCHMARK_NUM), m_ngram.Find(text, BENCHMARK_NUM));
+                assertArrayEquals(text, linear.Find(text, KEYS), m_ngram.Find(text, KEYS));
+            }
+        }
+    }
+
+    // Intersection with skips against linear intersection, for random texts and for texts joining frequent characters
+    // with a rare one
+    @Test public void Benchmark() throws Exception
+    {
+        TestFiles.BenchmarkBegin();
+        Random random = new Random(34);
+        LinearIndex linear = new LinearIndex(m_data);
+        for (boolean mixed : new boolean[]{ false, true }) {
+            String[] query = Benchmark(random, mixed);
+            String name_skip = "DataFileNgram::Find skip table, " + (mixed ? "frequent and rare" : "random");
+            String name_linear = "DataFileNgram::Find linear, " + (mixed ? "frequent and rare" : "random");
+
+            // Later passes are timed
+            for (int pass = 0; pass < 10; pass++) {
+                for (String text : query) {
+                    long trace = ((pass > 0) ? System.nanoTime() : 0);
+                    m_ngram.Find(text, BENCHMARK_NUM);
+                    DataTrace.End(name_skip, trace);
+                }
+                for (String text : query) {
+                    long trace = ((pass > 0) ? System.nanoTime() : 0);
+                    linear.Find(text, BENCHMARK_NUM);
+                    DataTrace.End(name_linear, trace);
+                }
+            }
+        }
+        TestFiles.BenchmarkEnd("DataFileNgram");
+    }
+
+    private static String[] Benchmark(Random random, boolean mixed)
+    {
+        String[] query = new String[BENCHMARK_QUERIES];
+        for (int i = 0; i < query.length; i++)
+            query[i] = (mixed ? CHARS.substring(0, 2 + random.nextInt(2)) + RARE : Query(random));
+        return query;
+    }
+
+    // Reader of the same file ignoring the skip table, shortest list first
+    private static class LinearIndex
+    {
+        // Data
+        private ByteBuffer m_buf;
+        private int m_gram_num;
+
+        // Constructor
+        private LinearIndex(byte[] data)
+        {
+            m_buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            m_gram_num = m_buf.getInt(4);
+        }
+
+        private int[] Find(String text, int num)
+        {
+            // Posting lists, position of the next entry, count left and last id
+            int[] grams = DataFileNgram.Grams(text);
+            if (grams.length == 0)
+                return new int[0];
+            int[][] list = new int[grams.length][];
+            for (int i = 0; i < grams.length; i++) {
+                int gram = Arrays.binarySearch(Grams(), grams[i]);
+                if (gram < 0)
+                    return new int[0];
+                int pos = 12 + (8 * m_gram_num) + 4 + m_buf.getInt(12 + (4 * m_gram_num) + (4 * gram));
+                list[i] = new int[]{ pos + 8 + (8 * m_buf.getInt(pos + 4)), m_buf.getInt(pos), -1 };
+            }
+            Arrays.sort(list, new Comparator<int[]>() {
+                @Override public int compare(int[] a, int[] b)
+                {
+                    return ((a[1] < b[1]) ? -1 : ((a[1] > b[1]) ? 1 : 0));
+                }
+            });
+
+            // Intersection
+            ArrayList<Integer> ret = new ArrayList<Integer>();
+            while (ret.size() < num && Next(list[0])) {
+                boolean found = true;
+                for (int i = 1; i < list.length && found; i++) {
+                    while (list[i][2] < list[0][2] && Next(list[i]));
+                    found = (list[i][2] == list[0][2]);
+                }
+                if (found)
+                    ret.add(list[0][2]);
+            }
+            int[] arr = new int[ret.size()];
+            for (int i = 0; i < arr.length; i++)
+                arr[i] = ret.get(i);
+            return arr;
+        }
+
+        private int[] m_grams = null;
+
+        private int[] Grams()
+        {
+            if (m_grams == null) {
+                m_grams = new int[m_gram_num];
+                for (int i = 0; i < m_gram_num; i++)
+                    m_grams[i] = m_buf.getInt(12 + (4 * i));
+            }
+            return m_grams;
+        }
+
+        private boolean Next(int[] list)
+        {
+            if (list[1] == 0)
+                return false;
+            int delta = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = m_buf.get(list[0]++);
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            list[2] = ((list[2] < 0) ? delta : (list[2] + delta));
+            list[1]--;
+            return true;
+        }
+    }
+
+    // Helpers
+    private int[] Scan(int[] grams, int id_s, int num)
+    {
+        ArrayList<Integer> ret = new ArrayList<Integer>();
+        if (grams.length == 0)
+            return new int[0];
+        for (int id = id_s; id < m_key.size() && ret.size() < num; id++) {
+            boolean found = true;
+            for (int gram : grams)
+                found &= m_gram.get(id).contains(gram);
+            if (found)
+                ret.add(id);
+        }
+        int[] arr = new int[ret.size()];
+        for (int i = 0; i < arr.length; i++)
+            arr[i] = ret.get(i);
+        return arr;
+    }
+
+    private static String Query(Random random)
+    {
+        // Single characters, bigrams and longer texts
+        return Text(random, 1 + random.nextInt(4));
+    }
+
+    private static String Text(Random random, int len)
+    {
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < len; i++)
+            ret.append((random.nextInt(1000) == 0) ? RARE : CHARS.charAt(Math.min(random.nextInt(CHARS.length()), random.nextInt(CHARS.length()))));
+        return ret.toString();
+    }
+}
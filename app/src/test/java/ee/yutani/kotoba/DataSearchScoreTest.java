@@ -0,0 +1,202 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Score table against a brute force map of the same words
+public class DataSearchScoreTest
+{
+    // Brute force word
+    private static class Word
+    {
+        private int m_id;
+        private long m_weight;
+        private int m_level;
+        private int m_token;
+
+        private Word(int id, long weight, int token)
+        {
+            m_id = id;
+            m_weight = weight;
+            m_token = token;
+        }
+    }
+
+    private static final Comparator<Word> RANKING = new Comparator<Word>() {
+        @Override public int compare(Word a, Word b)
+        {
+            if (a.m_level != b.m_level)
+                return ((a.m_level > b.m_level) ? -1 : 1);
+            if (a.m_weight != b.m_weight)
+                return ((a.m_weight > b.m_weight) ? -1 : 1);
+            return ((a.m_id < b.m_id) ? -1 : ((a.m_id > b.m_id) ? 1 : 0));
+        }
+    };
+
+    // Words of several tokens with repeats, the table grows past its initial capacity
+    @Test public void Top()
+    {
+        Random random = new Random(21);
+        for (int tokens = 1; tokens <= 4; tokens++) {
+            DataSearchScore score = new DataSearchScore(200);
+            HashMap<Integer, Word> expect = new HashMap<Integer, Word>();
+            for (int token = 1; token <= tokens; token++) {
+                score.Token();
+                for (int i = 0; i < 3000; i++) {
+                    int id = random.nextInt(5000);
+                    long first = random.nextInt(1000000);
+                    long next = random.nextInt(1000);
+                    score.Add(id, first, next);
+
+                    // First token sets the weight, later tokens add once each
+                    Word word = expect.get(id);
+                    if (word == null) {
+                        expect.put(id, new Word(id, first, token));
+                    } else if (word.m_token != token) {
+                        word.m_weight += next;
+                        word.m_level++;
+                        word.m_token = token;
+                    }
+                }
+            }
+            assertEquals(expect.size(), score.Size());
+
+            // Ranking
+            ArrayList<Word> list = new ArrayList<Word>(expect.values());
+            Collections.sort(list, RANKING);
+            for (int num : new int[]{ 0, 1, 200, 4000, 10000 }) {
+                int[] top = score.Top(num);
+                assertEquals(Math.min(num, list.size()), top.length);
+                for (int i = 0; i < top.length; i++) {
+                    assertEquals(list.get(i).m_id, score.Id(top[i]));
+                    assertEquals(list.get(i).m_weight, score.Weight(top[i]));
+                    assertEquals(list.get(i).m_level, score.Level(top[i]));
+                }
+            }
+        }
+    }
+
+    // Pages that return to earlier tokens count each word once per token
+    @Test public void Pages()
+    {
+        Random random = new Random(24);
+        for (int tokens : new int[]{ 1, 3, 63 }) {
+            DataSearchScore score = new DataSearchScore(0);
+            HashMap<Integer, Word> expect = new HashMap<Integer, Word>();
+            HashSet<Long> counted = new HashSet<Long>();
+            for (int page = 0; page < 4; page++) {
+                for (int token = 1; token <= tokens; token++) {
+                    score.Token(token);
+                    for (int i = 0; i < 200; i++) {
+                        int id = random.nextInt(500);
+                        long first = random.nextInt(1000000);
+                        long next = random.nextInt(1000);
+                        score.Add(id, first, next);
+
+                        // First token of the word sets the weight, other tokens add once each over all pages
+                        if (!counted.add(((long) token << 32) | id))
+                            continue;
+                        Word word = expect.get(id);
+                        if (word == null) {
+                            expect.put(id, new Word(id, first, token));
+                        } else {
+                            word.m_weight += next;
+                            word.m_level++;
+                        }
+                    }
+                }
+            }
+            assertEquals(expect.size(), score.Size());
+
+            // Ranking
+            ArrayList<Word> list = new ArrayList<Word>(expect.values());
+            Collections.sort(list, RANKING);
+            int[] top = score.Top(list.size());
+            for (int i = 0; i < top.length; i++) {
+                assertEquals(list.get(i).m_id, score.Id(top[i]));
+                assertEquals(list.get(i).m_weight, score.Weight(top[i]));
+                assertEquals(list.get(i).m_level, score.Level(top[i]));
+            }
+        }
+    }
+
+    // Threshold is the smallest of the best first weights once enough words are known
+    @Test public void Threshold()
+    {
+        Random random = new Random(22);
+        for (int num : new int[]{ 1, 7, 200 }) {
+            DataSearchScore score = new DataSearchScore(num);
+            score.Token();
+            HashMap<Integer, Long> first = new HashMap<Integer, Long>();
+            for (int i = 0; i < 2000; i++) {
+                int id = random.nextInt(3000);
+                long weight = random.nextInt(100000);
+                score.Add(id, weight, 0);
+                if (!first.containsKey(id))
+                    first.put(id, weight);
+
+                ArrayList<Long> weights = new ArrayList<Long>(first.values());
+                Collections.sort(weights, Collections.reverseOrder());
+                long expect = ((weights.size() < num) ? -1 : weights.get(num - 1));
+                assertEquals(expect, score.Threshold());
+            }
+        }
+        assertEquals(-1, new DataSearchScore(0).Threshold());
+    }
+
+    // Paged slots leave out words taken before and return every other word once
+    @Test public void Next()
+    {
+        Random random = new Random(23);
+        DataSearchScore score = new DataSearchScore(0);
+        score.Token();
+        for (int i = 0; i < 3000; i++)
+            score.Add(random.nextInt(2000), random.nextInt(100000), 0);
+        score.Take(5);
+        score.Take(100000);
+
+        HashSet<Integer> seen = new HashSet<Integer>();
+        long last = Long.MAX_VALUE;
+        int[] page;
+        while ((page = score.Next(100)).length > 0) {
+            for (int slot : page) {
+                assertTrue(seen.add(score.Id(slot)));
+                assertTrue(score.Weight(slot) <= last);
+                last = score.Weight(slot);
+            }
+        }
+        assertTrue(!seen.contains(5) && !seen.contains(100000));
+        assertEquals(score.Size() - 2, seen.size());
+    }
+}
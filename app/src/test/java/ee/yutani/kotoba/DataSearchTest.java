@@ -0,0 +1,268 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import ee.yutani.kotoba.DataFileBase.BaseInfo;
+import ee.yutani.kotoba.DataSearch.SearchCursor;
+import ee.yutani.kotoba.DataSearch.SearchWord;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Searches over bases written by Build, lookups run together or one by one
+public class DataSearchTest
+{
+    // Key characters of the English and Japanese bases
+    private static final String LATIN = "abcdefghiklmnoprstuw";
+    private static final String KANA = "あいうえおかきくけこさしすせそたちつてと";
+    private static final String KANJI = "日本語漢字食飲家水人読書大小言葉";
+
+    // Entries
+    private static final int KEYS = 20000;
+    private static final int WORDS = 60000;
+
+    // Benchmark
+    private static final int BENCHMARK_QUERIES = 200;
+
+    private DataSearch m_search = null;
+    private DataFileBase m_base_e = null;
+    private DataFileBase m_base_f = null;
+    private DataFileBase m_base_k = null;
+
+    // Keys and word references of the English base
+    private ArrayList<String> m_key = new ArrayList<String>();
+    private ArrayList<int[]> m_wref = new ArrayList<int[]>();
+
+    @Before public void Bases() throws Exception
+    {
+        Random random = new Random(11);
+        m_base_e = Base(random, LATIN, 3, 10, m_key, m_wref);
+        m_base_f = Base(random, KANA, 2, 6, new ArrayList<String>(), new ArrayList<int[]>());
+        m_base_k = Base(random, KANJI + KANA, 1, 4, new ArrayList<String>(), new ArrayList<int[]>());
+        m_search = new DataSearch(m_base_e, m_base_f, m_base_k, null, null);
+    }
+
+    // Lookups run together give the same ranking as lookups run one by one
+    @Test public void Parallel()
+    {
+        Random random = new Random(12);
+        for (int tokens : new int[]{ 1, 3, 6 }) {
+            for (int i = 0; i < 40; i++) {
+                String query = Query(random, tokens);
+                List<SearchWord> sequential = Search(query, false);
+                List<SearchWord> parallel = Search(query, true);
+                assertEquals(query, sequential.size(), parallel.size());
+                for (int j = 0; j < sequential.size(); j++)
+                    assertEquals(query, 0, sequential.get(j).compareTo(parallel.get(j)));
+            }
+        }
+        m_search.SetParallel(true);
+    }
+
+    // Single token searches that skip lookups below the threshold rank like merging every lookup
+    @Test public void Bounded()
+    {
+        Random random = new Random(14);
+        for (int i = 0; i < 200; i++) {
+            String query = Query(random, 1);
+
+            // First weight of each word over all lookups in merge order
+            ArrayList<ArrayList<BaseInfo>> lookup = new ArrayList<ArrayList<BaseInfo>>();
+            if (query.matches("[a-z]+")) {
+                lookup.add(m_base_e.Find(query, 30));
+                int distance = ((query.length() >= 8) ? 2 : ((query.length() >= 4) ? 1 : 0));
+                if (distance > 0)
+                    lookup.add(m_base_e.FindFuzzy(query, distance, 30));
+            } else {
+                lookup.add(m_base_f.Find(query, 30));
+                lookup.add(m_base_k.Find(query, 30));
+                lookup.add(m_base_f.FindInfix(query, 30));
+                lookup.add(m_base_k.FindInfix(query, 30));
+            }
+            HashMap<Integer, Long> weight = new HashMap<Integer, Long>();
+            for (ArrayList<BaseInfo> list : lookup) {
+                for (BaseInfo info : list) {
+                    for (int j = 0; j < info.Wref().length; j++) {
+                        if (!weight.containsKey(info.Wref()[j]))
+                            weight.put(info.Wref()[j], Score(info.Match(), info.Wrank()[j], info.Distance()));
+                    }
+                }
+            }
+
+            // Best words, weight then id
+            ArrayList<Long> expect = new ArrayList<Long>();
+            for (Map.Entry<Integer, Long> entry : weight.entrySet())
+                expect.add((-entry.getValue() << 20) | entry.getKey());
+            Collections.sort(expect);
+            List<SearchWord> result = Search(query, true);
+            assertEquals(query, Math.min(expect.size(), 200), result.size());
+            for (int j = 0; j < result.size(); j++)
+                assertEquals(query, (int)(expect.get(j) & 0xfffff), result.get(j).Id());
+        }
+        m_search.SetParallel(true);
+    }
+
+    // Pages continue until every word of the keys starting with the query is returned, each word once
+    @Test public void Cursor()
+    {
+        for (String query : new String[]{ "a", "ab", "abc", "bad", "あ", "日本" }) {
+            // First page
+            HashSet<Integer> seen = new HashSet<Integer>();
+            List<SearchWord> shown = Search(query, true);
+            for (SearchWord word : shown)
+                assertTrue(query, seen.add(word.Id()));
+
+            // Further pages
+            SearchCursor cursor = m_search.Cursor(query, shown);
+            while (!cursor.End()) {
+                for (SearchWord word : cursor.Next())
+                    assertTrue(query, seen.add(word.Id()));
+            }
+            assertTrue(query, cursor.Next().size() == 0);
+
+            // Words of the English keys starting with the query
+            for (int i = 0; i < m_key.size(); i++) {
+                if (!m_key.get(i).startsWith(query))
+                    continue;
+                for (int wref : m_wref.get(i))
+                    assertTrue(query + " " + m_key.get(i), seen.contains(wref & 0x0fffffff));
+            }
+        }
+    }
+
+    // Latency of queries of 1, 3 and 6 tokens, result cache cleared before each query
+    @Test public void Benchmark() throws Exception
+    {
+        TestFiles.BenchmarkBegin();
+        Random random = new Random(13);
+        for (int tokens : new int[]{ 1, 3, 6 }) {
+            String[] query = new String[BENCHMARK_QUERIES];
+            for (int i = 0; i < query.length; i++)
+                query[i] = Query(random, tokens);
+
+            // Later passes are timed
+            for (int pass = 0; pass < 3; pass++) {
+                for (int mode = 0; mode < 2; mode++) {
+                    String name = String.format("DataSearch::Search %s, %d tokens", ((mode == 1) ? "parallel" : "sequential"), tokens);
+                    for (String text : query) {
+                        long trace = ((pass > 0) ? System.nanoTime() : 0);
+                        Search(text, (mode == 1));
+                        DataTrace.End(name, trace);
+                    }
+                }
+            }
+        }
+        m_search.SetParallel(true);
+        TestFiles.BenchmarkEnd("DataSearch");
+    }
+
+    // Helpers
+    private List<SearchWord> Search(String query, boolean parallel)
+    {
+        m_search.SetParallel(parallel);
+        m_search.CacheClear();
+        return m_search.Search(query);
+    }
+
+    // First weight of a word without priorities
+    private static long Score(float match, int rank, int distance)
+    {
+        long weight = 100;
+        if (match == 1.0f)
+            weight *= 1000 * 1000;
+        else if (match > 1.0f)
+            weight *= 1000.0 / match;
+        else
+            weight *= match;
+        weight /= Math.max(rank + 1, 1);
+        for (int i = 0; i < distance; i++)
+            weight /= 100;
+        return weight * 64;
+    }
+
+    private static String Query(Random random, int tokens)
+    {
+        // Mixed English and Japanese tokens, short ones are prefixes of many keys
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            if (i > 0)
+                ret.append(' ');
+            switch (random.nextInt(3)) {
+                case 0: ret.append(Text(random, LATIN, 1 + random.nextInt(8))); break;
+                case 1: ret.append(Text(random, KANA, 1 + random.nextInt(3))); break;
+                default: ret.append(Text(random, KANJI, 1 + random.nextInt(2))); break;
+            }
+        }
+        return ret.toString();
+    }
+
+    private static DataFileBase Base(Random random, String chars, int len_min, int len_max, ArrayList<String> keys, ArrayList<int[]> wref) throws Exception
+    {
+        // Sorted keys
+        TreeSet<String> set = new TreeSet<String>();
+        while (set.size() < KEYS)
+            set.add(Text(random, chars, len_min + random.nextInt(len_max - len_min + 1)));
+        keys.addAll(set);
+
+        // Word references with ranks, some keys are readings of many words
+        for (int i = 0; i < keys.size(); i++) {
+            int[] entry = new int[(random.nextInt(8) == 0) ? 10 + random.nextInt(20) : 1 + random.nextInt(4)];
+            for (int j = 0; j < entry.length; j++)
+                entry[j] = (random.nextInt(8) << 28) | random.nextInt(WORDS);
+            wref.add(entry);
+        }
+
+        // Base, automaton and n-gram index
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataFileBase.Build(keys, wref, 0, os);
+        File base = TestFiles.Write(os.toByteArray());
+        os = new ByteArrayOutputStream();
+        DataFileAutomaton.Build(keys, os);
+        File automaton = TestFiles.Write(os.toByteArray());
+        os = new ByteArrayOutputStream();
+        DataFileNgram.Build(keys, os);
+        File ngram = TestFiles.Write(os.toByteArray());
+        return new DataFileBase(base, automaton, ngram, DataFileBase.CACHE_DEPTH, DataFileBase.CACHE_BUDGET);
+    }
+
+    private static String Text(Random random, String chars, int len)
+    {
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < len; i++)
+            ret.append(chars.charAt(random.nextInt(chars.length())));
+        return ret.toString();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+// Concurrent positional reads of plain and KDB v2 files
+public class DataStreamTest
+{
+    // Data
+    private static final int LENGTH = 4 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int READS = 200000;
+
+    private byte[] m_data;
+    private DataStream m_plain;
+    private DataStream m_packed;
+
+    @Before public void Open() throws Exception
+    {
+        m_data = TestFiles.Text(1, LENGTH);
+        m_plain = new DataStream(TestFiles.Write(m_data));
+        m_packed = new DataStream(TestFiles.Pack(m_data, BLOCK_SIZE));
+    }
+
+    @Test public void Reads() throws Exception
+    {
+        assertEquals(LENGTH, m_plain.Length());
+        assertEquals(LENGTH, m_packed.Length());
+        assertEquals(0, Check(m_plain, 0, READS / 10));
+        assertEquals(0, Check(m_packed, 0, READS / 10));
+    }
+
+    // Readers share the streams without locks, every thread must see exactly the file contents
+    @Test public void ConcurrentReads() throws Exception
+    {
+        for (DataStream ds : new DataStream[]{ m_plain, m_packed }) {
+            for (int threads = 1; threads <= 8; threads *= 2)
+                assertEquals(0, CheckThreads(ds, threads, READS));
+        }
+    }
+
+    // Read rates by thread count, a span for all reads of each pass
+    @Test public void Benchmark() throws Exception
+    {
+        TestFiles.BenchmarkBegin();
+        for (DataStream ds : new DataStream[]{ m_plain, m_packed }) {
+            CheckThreads(ds, 1, READS);
+            for (int threads = 1; threads <= 8; threads *= 2) {
+                String name = String.format("DataStream::Buffer %s, %d threads, %d reads", ((ds == m_plain) ? "plain" : "packed"), threads, READS);
+                for (int pass = 0; pass < 3; pass++) {
+                    long trace = System.nanoTime();
+                    CheckThreads(ds, threads, READS);
+                    DataTrace.End(name, trace);
+                }
+            }
+        }
+        TestFiles.BenchmarkEnd("DataStream");
+    }
+
+    // Errors of reads split between threads
+    private int CheckThreads(final DataStream ds, int threads, int reads) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<Integer>> future = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < threads; i++) {
+                final int seed = i;
+                final int num = reads / threads;
+                future.add(executor.submit(new Callable<Integer>() {
+                    @Override public Integer call()
+                    {
+                        return Check(ds, seed, num);
+                    }
+                }));
+            }
+            int errors = 0;
+            for (Future<Integer> entry : future)
+                errors += entry.get();
+            return errors;
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    // Random reads, short ones inside blocks and longer ones across block borders
+    private int Check(DataStream ds, int seed, int reads)
+    {
+        Random random = new Random(seed);
+        int errors = 0;
+        for (int i = 0; i < reads; i++) {
+            int size = ((random.nextInt(8) == 0) ? 1 + random.nextInt(3 * BLOCK_SIZE) : 4 + random.nextInt(256));
+            int offset = random.nextInt(LENGTH - size);
+            ByteBuffer buf = ds.Buffer(offset, size);
+            if (buf.remaining() != size) {
+                errors++;
+                continue;
+            }
+            for (int j = 0; j < size; j += 61) {
+                if (buf.get(j) != m_data[offset + j])
+                    errors++;
+            }
+            int value = (m_data[offset] & 0xff) | ((m_data[offset + 1] & 0xff) << 8) | ((m_data[offset + 2] & 0xff) << 16) | (m_data[offset + 3] << 24);
+            if (ds.ReadInt(offset) != value)
+                errors++;
+        }
+        return errors;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ee.yutani.kotoba.DataFileWord.WordInfo;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Segments, second chance eviction and concurrent reads of the word cache
+public class DataWordCacheTest
+{
+    // Words
+    private static final int WORD_BYTES = 10;
+    private static final WordInfo WORD = new WordInfo(0, ByteBuffer.allocate(16));
+
+    // Concurrent reads, and the benchmark
+    private static final int CONCURRENT_READS = 200000;
+    private static final int BENCHMARK_WORDS = 4096;
+    private static final int BENCHMARK_READS = 2000000;
+
+    // Words read twice survive a scan of words read once
+    @Test public void Segments()
+    {
+        DataWordCache cache = new DataWordCache(100 * WORD_BYTES);
+        for (int id = 0; id < 20; id++) {
+            cache.Put(id, 1, WORD, WORD_BYTES);
+            assertNotNull(cache.Get(id, 1));
+        }
+        for (int id = 1000; id < 2000; id++) {
+            cache.Put(id, 1, WORD, WORD_BYTES);
+            assertTrue(cache.Size() <= 100 * WORD_BYTES);
+        }
+        for (int id = 0; id < 20; id++)
+            assertNotNull(cache.Get(id, 1));
+        assertNull(cache.Get(1000, 1));
+        assertEquals(920, cache.Evictions());
+    }
+
+    // Protected words read since the last pass stay, the oldest unread one goes back to probation first
+    @Test public void SecondChance()
+    {
+        // Protected segment holds 8 words
+        DataWordCache cache = new DataWordCache(10 * WORD_BYTES);
+        for (int id = 0; id < 8; id++) {
+            cache.Put(id, 1, WORD, WORD_BYTES);
+            cache.Get(id, 1);
+        }
+        for (int id = 0; id < 4; id++)
+            cache.Get(id, 1);
+
+        // Ninth promotion demotes word 4, the scan evicts it with the probation words
+        cache.Put(8, 1, WORD, WORD_BYTES);
+        cache.Get(8, 1);
+        for (int id = 100; id < 120; id++)
+            cache.Put(id, 1, WORD, WORD_BYTES);
+        assertNull(cache.Get(4, 1));
+        for (int id = 0; id < 9; id++) {
+            if (id != 4)
+                assertNotNull(Integer.toString(id), cache.Get(id, 1));
+        }
+    }
+
+    @Test public void Stamp()
+    {
+        DataWordCache cache = new DataWordCache(100 * WORD_BYTES);
+        cache.Put(1, 1, WORD, WORD_BYTES);
+        assertNotNull(cache.Get(1, 1));
+        assertNull(cache.Get(1, 2));
+        assertEquals(0, cache.Size());
+        assertEquals(1, cache.Hits());
+        assertEquals(1, cache.Misses());
+    }
+
+    // Words evicted and put again while a reader promotes the old entry stay in a segment, trimming frees everything
+    @Test public void Churn() throws Exception
+    {
+        final DataWordCache cache = new DataWordCache(16 * WORD_BYTES);
+        for (int pass = 0; pass < 20; pass++) {
+            Threads(4, CONCURRENT_READS, new Reader() {
+                @Override public void Read(Random random)
+                {
+                    int id = random.nextInt(32);
+                    if (cache.Get(id, 1) == null)
+                        cache.Put(id, 1, WORD, WORD_BYTES);
+                }
+            });
+            assertTrue(cache.Size() <= 16 * WORD_BYTES);
+        }
+        cache.Trim(0);
+        assertEquals(0, cache.Size());
+        for (int id = 0; id < 32; id++)
+            assertNull(cache.Get(id, 1));
+    }
+
+    // Readers and writers together keep the budget and count every read
+    @Test public void ConcurrentReads() throws Exception
+    {
+        final DataWordCache cache = new DataWordCache(BENCHMARK_WORDS * WORD_BYTES);
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            long reads = cache.Hits() + cache.Misses();
+            Threads(threads, CONCURRENT_READS, new Reader() {
+                @Override public void Read(Random random)
+                {
+                    int id = Id(random);
+                    if (cache.Get(id, 1) == null)
+                        cache.Put(id, 1, WORD, WORD_BYTES);
+                }
+            });
+            assertEquals(CONCURRENT_READS, cache.Hits() + cache.Misses() - reads);
+            assertTrue(cache.Size() <= BENCHMARK_WORDS * WORD_BYTES);
+        }
+    }
+
+    // Read rates against one locked map, a span for all reads of each pass
+    @Test public void Benchmark() throws Exception
+    {
+        TestFiles.BenchmarkBegin();
+        final DataWordCache cache = new DataWordCache(BENCHMARK_WORDS * WORD_BYTES);
+        final LockedCache locked = new LockedCache(BENCHMARK_WORDS);
+        for (int id = 0; id < BENCHMARK_WORDS; id++) {
+            cache.Put(id, 1, WORD, WORD_BYTES);
+            locked.Put(id, WORD);
+        }
+
+        // Later passes are timed
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            String name_cache = String.format("DataWordCache::Get %d threads, %d reads", threads, BENCHMARK_READS);
+            String name_locked = String.format("DataWordCache::Get locked map, %d threads, %d reads", threads, BENCHMARK_READS);
+            for (int pass = 0; pass < 3; pass++) {
+                long trace = System.nanoTime();
+                Threads(threads, BENCHMARK_READS, new Reader() {
+                    @Override public void Read(Random random)
+                    {
+                        int id = Id(random);
+                        if (cache.Get(id, 1) == null)
+                            cache.Put(id, 1, WORD, WORD_BYTES);
+                    }
+                });
+                DataTrace.End(name_cache, ((pass > 0) ? trace : 0));
+
+                trace = System.nanoTime();
+                Threads(threads, BENCHMARK_READS, new Reader() {
+                    @Override public void Read(Random random)
+                    {
+                        int id = Id(random);
+                        if (locked.Get(id) == null)
+                            locked.Put(id, WORD);
+                    }
+                });
+                DataTrace.End(name_locked, ((pass > 0) ? trace : 0));
+            }
+        }
+        TestFiles.BenchmarkEnd("DataWordCache");
+    }
+
+    // Skewed ids, most reads hit a small set of words
+    private static int Id(Random random)
+    {
+        int id = random.nextInt(BENCHMARK_WORDS);
+        return ((random.nextInt(4) == 0) ? id * 2 : id / 8);
+    }
+
+    // Reads split between threads
+    private interface Reader
+    {
+        public void Read(Random random);
+    }
+
+    private static void Threads(int threads, final int reads, final Reader reader) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<Void>> future = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                final int seed = i;
+                final int num = reads / threads;
+                future.add(executor.submit(new Callable<Void>() {
+                    @Override public Void call()
+                    {
+                        Random random = new Random(seed);
+                        for (int j = 0; j < num; j++)
+                            reader.Read(random);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> entry : future)
+                entry.get();
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    // Earlier cache, least recently used words under one lock
+    private static class LockedCache
+    {
+        private int m_num;
+        private LinkedHashMap<Integer, WordInfo> m_map = new LinkedHashMap<Integer, WordInfo>(64, 0.75f, true);
+
+        private LockedCache(int num)
+        {
+            m_num = num;
+        }
+
+        private synchronized WordInfo Get(int id)
+        {
+            return m_map.get(id);
+        }
+
+        private synchronized void Put(int id, WordInfo info)
+        {
+            m_map.put(id, info);
+            if (m_map.size() > m_num)
+                m_map.remove(m_map.keySet().iterator().next());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Kotoba-chan
+ *
+ * Copyright (C) 2013 Siim Meerits <sh0@yutani.ee>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+// Package
+package ee.yutani.kotoba;
+
+// Imports
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Assume;
+
+// Test data files, and benchmarks run on demand
+public class TestFiles
+{
+    // Benchmarks run only with -Dkotoba.benchmark=<directory>, each writing its timing trace there
+    private static final String BENCHMARK = "kotoba.benchmark";
+
+    // Words of generated text, repeated like dictionary records so that blocks compress
+    private static final String[] WORDS = {
+        "to", "eat", "drink", "house", "water", "person", "read", "write", "large", "small",
+        "taberu", "nomu", "ie", "mizu", "hito", "yomu", "kaku", "ookii", "chiisai", "kotoba"
+    };
+
+    // Text of len bytes
+    public static byte[] Text(long seed, int len)
+    {
+        Random random = new Random(seed);
+        byte[] ret = new byte[len];
+        int pos = 0;
+        while (pos < len) {
+            byte[] word = (WORDS[random.nextInt(WORDS.length)] + ((random.nextInt(4) == 0) ? "; " : " ")).getBytes();
+            int num = Math.min(word.length, len - pos);
+            System.arraycopy(word, 0, ret, pos, num);
+            pos += num;
+        }
+        return ret;
+    }
+
+    // Temporary files, removed when the test run ends
+    public static File Write(byte[] data) throws IOException
+    {
+        File file = File.createTempFile("kotoba-test", ".kdb");
+        file.deleteOnExit();
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    public static File Pack(byte[] data, int block_size) throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataCompress.Pack(data, block_size, os);
+        return Write(os.toByteArray());
+    }
+
+    // Benchmark, skipped unless asked for, tracing stays off so that the code measured runs as in the app and spans
+    // are ended from System.nanoTime() starts
+    public static void BenchmarkBegin()
+    {
+        Assume.assumeTrue(System.getProperty(BENCHMARK) != null);
+        DataTrace.Clear();
+    }
+
+    public static void BenchmarkEnd(String name) throws IOException
+    {
+        File dir = new File(System.getProperty(BENCHMARK));
+        dir.mkdirs();
+        OutputStream os = new FileOutputStream(new File(dir, name + ".json"));
+        try {
+            DataTrace.Write(os);
+        } finally {
+            os.close();
+        }
+    }
+}